@@ -5,8 +5,12 @@
 package components;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.function.Supplier;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class Book {
 
     private int id;
@@ -21,6 +25,9 @@ public class Book {
 
     private String series;
 
+    /* Loads the abstract on first use, if not given. */
+    private Supplier<String> abstrLoader;
+
     @JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
     public Book(@JsonProperty("id") int id, @JsonProperty("title") String title, @JsonProperty("abstr") String abstr, @JsonProperty("author") String author, @JsonProperty("rating") double rating, @JsonProperty("numRatings") int numRatings, @JsonProperty("numReviews") int numReviews, @JsonProperty("genres") String[] genres, @JsonProperty("series") String series) {
         this.id = id;
@@ -34,6 +41,14 @@ public class Book {
         this.series = series;
     }
 
+    /**
+     * Book whose abstract is loaded by abstrLoader when first needed.
+     */
+    public Book(int id, String title, Supplier<String> abstrLoader, String author, double rating, int numRatings, int numReviews, String[] genres, String series) {
+        this(id, title, (String) null, author, rating, numRatings, numReviews, genres, series);
+        this.abstrLoader = abstrLoader;
+    }
+
     public int getId() {
         return id;
     }
@@ -47,6 +62,10 @@ public class Book {
     }
 
     public String getAbstr() {
+        if (abstr == null && abstrLoader != null) {
+            abstr = abstrLoader.get();
+            abstrLoader = null;
+        }
         return abstr;
     }
 
@@ -54,6 +73,22 @@ public class Book {
         return rating;
     }
 
+    public int getNumRatings() {
+        return numRatings;
+    }
+
+    public int getNumReviews() {
+        return numReviews;
+    }
+
+    public String[] getGenres() {
+        return genres;
+    }
+
+    public String getSeries() {
+        return series;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o instanceof Book other) {
@@ -1,9 +1,9 @@
 /**
- * Enum search type to allow both user profile-based and neutral queries
+ * Enum search type to allow user profile-based (by similar users, by similar books or by a factorization model), popularity-based and neutral queries
  */
 
 package components;
 
 public enum QueryType {
-    USER_QUERY, NEUTRAL_QUERY
+    USER_QUERY, ITEM_QUERY, MODEL_QUERY, POPULAR_QUERY, NEUTRAL_QUERY
 }
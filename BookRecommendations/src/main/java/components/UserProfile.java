@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import similarity.CosineSimilarity;
 import similarity.RatingMatrix;
@@ -13,6 +14,13 @@ public class UserProfile {
     private final Map<Integer, Integer> ratings = new HashMap<>();
     private final int user_id;
 
+    /* Versions of all profiles, so that a version is never reused, not even by
+       another profile of the same user (e.g. after reloading its ratings). */
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    /* Renewed whenever ratings change, to invalidate results computed from them. */
+    private long version = VERSIONS.incrementAndGet();
+
     public UserProfile() {
         user_id = 0;
     }
@@ -21,6 +29,15 @@ public class UserProfile {
         this.user_id = user_id;
     }
 
+    /**
+     * Copy of other, e.g. to search with while other is being rated.
+     */
+    public UserProfile(UserProfile other) {
+        this.user_id = other.user_id;
+        this.version = other.version;
+        ratings.putAll(other.ratings);
+    }
+
     public Map<Integer, Integer> getRatings() {
         return ratings;
     }
@@ -35,6 +52,7 @@ public class UserProfile {
 
     public void removeRating(int bookId) {
         ratings.remove(bookId);
+        version = VERSIONS.incrementAndGet();
     }
 
     public void removeRating(Book book) {
@@ -43,6 +61,7 @@ public class UserProfile {
 
     public void setRating(int bookId, int rating) {
         ratings.put(bookId,rating);
+        version = VERSIONS.incrementAndGet();
     }
 
     public void setRating(Book book, int rating) {
@@ -51,12 +70,21 @@ public class UserProfile {
 
     public void resetRatings() {
         ratings.clear();
+        version = VERSIONS.incrementAndGet();
     }
 
     public int getId() {
         return user_id;
     }
 
+    /**
+     * Version of the ratings, which changes whenever they are changed and is
+     * unique among all profiles.
+     */
+    public long getVersion() {
+        return version;
+    }
+
     /**
      * Load ratings from rating matrix into user profile (by user id)
      */
@@ -0,0 +1,357 @@
+/**
+ * Local catalog of the indexed books, so that searches only need the id's of the hits
+ */
+
+package searcher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import components.Book;
+import io.github.cdimascio.dotenv.Dotenv;
+
+/**
+ * Books stored by column in a memory-mapped file. The numeric columns and
+ * the short text columns are copied to the heap when the catalog is opened,
+ * abstracts (most of the file) are read from the mapping when first needed.
+ *
+ * Layout (little endian):
+ *
+ *   header       magic, version, #books, 0, index stamp (2 longs)
+ *   ids          int[#books]      ascending
+ *   ratings      float[#books]
+ *   numRatings   int[#books]
+ *   numReviews   int[#books]
+ *   then for title, author, series, genres (separated by GENRE_SEPARATOR) and abstract:
+ *   offsets      int[#books + 1]  start of each book's text
+ *   text         byte[]           UTF-8, padded to a multiple of 4
+ *
+ * The index stamp (see BookSearcher.indexStamp) identifies the contents of the
+ * index the catalog was dumped from, so a stale catalog can be detected. The
+ * header is checked before the file is mapped, so a rejected catalog is not left
+ * mapped while it is being replaced (which Windows refuses).
+ */
+public class BookCatalog {
+    private static final int MAGIC = 0x54434b42; // "BKCT"
+    public static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int NUM_TEXT_COLUMNS = 5;
+    private static final char GENRE_SEPARATOR = '\u001f';
+
+    private final int size;
+    private final int[] ids;
+    private final float[] ratings;
+    private final int[] numRatings;
+    private final int[] numReviews;
+    private final TextColumn titles;
+    private final TextColumn authors;
+    private final TextColumn series;
+    private final TextColumn genres;
+    private final TextColumn abstracts;
+
+    /**
+     * Texts of one column, concatenated, with the offset of each book's text.
+     */
+    private static class TextColumn {
+        private final int[] offsets;
+        private final ByteBuffer text;
+
+        TextColumn(int[] offsets, ByteBuffer text) {
+            this.offsets = offsets;
+            this.text = text;
+        }
+
+        String get(int index) {
+            byte[] bytes = new byte[offsets[index + 1] - offsets[index]];
+            text.get(offsets[index], bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private BookCatalog(MappedByteBuffer buffer, int size) throws IOException {
+        this.size = size;
+        int pos = HEADER_SIZE;
+        ids = new int[size];
+        buffer.slice(pos, 4 * size).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(ids);
+        pos += 4 * size;
+        ratings = new float[size];
+        buffer.slice(pos, 4 * size).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(ratings);
+        pos += 4 * size;
+        numRatings = new int[size];
+        buffer.slice(pos, 4 * size).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(numRatings);
+        pos += 4 * size;
+        numReviews = new int[size];
+        buffer.slice(pos, 4 * size).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(numReviews);
+        pos += 4 * size;
+
+        TextColumn[] columns = new TextColumn[NUM_TEXT_COLUMNS];
+        for (int c = 0; c < NUM_TEXT_COLUMNS; ++c) {
+            if (pos + 4L * (size + 1) > buffer.capacity()) {
+                throw new IOException("Book catalog is truncated");
+            }
+            int[] offsets = new int[size + 1];
+            buffer.slice(pos, 4 * (size + 1)).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(offsets);
+            pos += 4 * (size + 1);
+            int length = offsets[size];
+            if (length < 0 || pos + (long) length > buffer.capacity()) {
+                throw new IOException("Book catalog is truncated");
+            }
+            ByteBuffer text = buffer.slice(pos, length);
+            if (c < NUM_TEXT_COLUMNS - 1) {
+                /* Short texts are read for every hit, copy them off the mapping. */
+                byte[] bytes = new byte[length];
+                text.get(0, bytes);
+                text = ByteBuffer.wrap(bytes);
+            }
+            columns[c] = new TextColumn(offsets, text);
+            long end = pos + padded(length);
+            if (end > buffer.capacity()) {
+                throw new IOException("Book catalog is truncated");
+            }
+            /* The capacity of the buffer is an int. */
+            pos = (int) end;
+        }
+        titles = columns[0];
+        authors = columns[1];
+        series = columns[2];
+        genres = columns[3];
+        abstracts = columns[4];
+    }
+
+    /**
+     * Open catalog written by write, see open(file, stamp).
+     */
+    public static BookCatalog open(Path file) throws IOException {
+        return open(file, null);
+    }
+
+    /**
+     * Open catalog written by write. If stamp is not null, the catalog must have
+     * been dumped from an index with that stamp. Throws IOException if it is
+     * missing, of another version, truncated or stale, in which case it should
+     * be rebuilt.
+     */
+    public static BookCatalog open(Path file, long[] stamp) throws IOException {
+        MappedByteBuffer buffer;
+        int size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE || fileSize > Integer.MAX_VALUE) {
+                throw new IOException("Invalid book catalog size " + fileSize + " of " + file);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Book catalog " + file + " is truncated");
+                }
+            }
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a book catalog of version " + VERSION);
+            }
+            size = header.getInt(8);
+            if (size < 0 || HEADER_SIZE + 16L * size > fileSize) {
+                throw new IOException("Book catalog " + file + " is truncated");
+            }
+            if (stamp != null && (header.getLong(16) != stamp[0] || header.getLong(24) != stamp[1])) {
+                throw new IOException("Book catalog " + file + " is stale with respect to the index");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return new BookCatalog(buffer, size);
+    }
+
+    /**
+     * Write books to file, which is replaced atomically, stamped with the
+     * stamp of the index they were dumped from (if not null). Missing texts
+     * and genres are stored, and read back, empty.
+     */
+    public static void write(Path file, List<Book> books, long[] stamp) throws IOException {
+        List<Book> sorted = new ArrayList<>(books);
+        sorted.sort(Comparator.comparingInt(Book::getId));
+        int size = sorted.size();
+        byte[][][] texts = new byte[NUM_TEXT_COLUMNS][size][];
+        long fileSize = HEADER_SIZE + 16L * size;
+        for (int i = 0; i < size; ++i) {
+            Book book = sorted.get(i);
+            String[] bookGenres = book.getGenres() != null ? book.getGenres() : new String[0];
+            String[] values = {book.getTitle(), book.getAuthor(), book.getSeries(),
+                    String.join(String.valueOf(GENRE_SEPARATOR), bookGenres), book.getAbstr()};
+            for (int c = 0; c < NUM_TEXT_COLUMNS; ++c) {
+                texts[c][i] = (values[c] != null ? values[c] : "").getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        for (int c = 0; c < NUM_TEXT_COLUMNS; ++c) {
+            long length = 0;
+            for (byte[] text : texts[c]) {
+                length += text.length;
+            }
+            fileSize += 4L * (size + 1) + padded(length);
+        }
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException("Book catalog too large: " + fileSize + " bytes");
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(0);
+            buffer.putLong(stamp != null ? stamp[0] : 0).putLong(stamp != null ? stamp[1] : 0);
+            for (Book book : sorted) {
+                buffer.putInt(book.getId());
+            }
+            for (Book book : sorted) {
+                buffer.putFloat((float) book.getRating());
+            }
+            for (Book book : sorted) {
+                buffer.putInt(book.getNumRatings());
+            }
+            for (Book book : sorted) {
+                buffer.putInt(book.getNumReviews());
+            }
+            for (int c = 0; c < NUM_TEXT_COLUMNS; ++c) {
+                int offset = 0;
+                buffer.putInt(offset);
+                for (byte[] text : texts[c]) {
+                    offset += text.length;
+                    buffer.putInt(offset);
+                }
+                for (byte[] text : texts[c]) {
+                    buffer.put(text);
+                }
+                for (long pad = offset; pad < padded(offset); ++pad) {
+                    buffer.put((byte) 0);
+                }
+            }
+            buffer.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Number of books in the catalog.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * True if book_id is in the catalog.
+     */
+    public boolean contains(int book_id) {
+        return Arrays.binarySearch(ids, book_id) >= 0;
+    }
+
+    /**
+     * Get book of book_id, with its abstract read when first needed,
+     * or null if it is not in the catalog.
+     */
+    public Book get(int book_id) {
+        int index = Arrays.binarySearch(ids, book_id);
+        if (index < 0) {
+            return null;
+        }
+        String bookGenres = genres.get(index);
+        return new Book(book_id, titles.get(index), () -> abstracts.get(index), authors.get(index),
+                ratings[index], numRatings[index], numReviews[index],
+                bookGenres.isEmpty() ? new String[0] : bookGenres.split(String.valueOf(GENRE_SEPARATOR)),
+                series.get(index));
+    }
+
+    private static long padded(long length) {
+        return (length + 3) & ~3L;
+    }
+
+    /**
+     * Dump all books of the index to ./books.catalog.
+     * With --check as only argument, test the catalog on a few books instead.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 1 && args[0].equals("--check")) {
+            check();
+            return;
+        }
+        Dotenv dotenv = Dotenv.configure().load();
+        var searcher = new BookSearcher("localhost", 9200, dotenv.get("ES_FINGERPRINT"), dotenv.get("ES_PASSWORD"), dotenv.get("ES_INDEX"));
+        long[] stamp = searcher.indexStamp();
+        List<Book> books = new ArrayList<>();
+        searcher.forEachBook(books::add);
+        write(Path.of("./books.catalog"), books, stamp);
+        System.out.println("Wrote " + books.size() + " books to ./books.catalog");
+        System.exit(0);
+    }
+
+    /**
+     * Test that books read back the same, and that stale and truncated catalogs are rejected.
+     */
+    private static void check() throws IOException {
+        List<Book> books = List.of(
+                new Book(7, "Les Misérables", "Jean Valjean, forçat libéré… 🕯", "Victor Hugo", 4.2, 120, 7,
+                        new String[] {"Roman", "Классика", "歴史"}, "Œuvres complètes"),
+                new Book(3, null, (String) null, null, 0.0, 0, 0, null, null),
+                new Book(5, "", "", "Anonymous", 3.5, 1, 0, new String[0], ""));
+        long[] stamp = {41, 42};
+        Path file = Files.createTempFile("books", ".catalog");
+        try {
+            write(file, books, stamp);
+            var catalog = open(file, stamp);
+            boolean equal = catalog.size() == books.size();
+            for (Book book : books) {
+                Book read = catalog.get(book.getId());
+                equal &= read != null && read.getId() == book.getId()
+                        && read.getTitle().equals(orEmpty(book.getTitle()))
+                        && read.getAuthor().equals(orEmpty(book.getAuthor()))
+                        && read.getSeries().equals(orEmpty(book.getSeries()))
+                        && read.getAbstr().equals(orEmpty(book.getAbstr()))
+                        && Arrays.equals(read.getGenres(), book.getGenres() != null ? book.getGenres() : new String[0])
+                        && read.getRating() == (float) book.getRating()
+                        && read.getNumRatings() == book.getNumRatings()
+                        && read.getNumReviews() == book.getNumReviews();
+            }
+            System.out.println(equal);
+            System.out.println(catalog.get(4) == null && !catalog.contains(4) && catalog.contains(5));
+
+            try {
+                open(file, new long[] {41, 43});
+                System.out.println(false);
+            } catch (IOException e) {
+                System.out.println(e.getMessage().contains("stale"));
+            }
+
+            /* Cut in the header, in the ids, and in the abstracts. */
+            long fileSize = Files.size(file);
+            byte[] bytes = Files.readAllBytes(file);
+            boolean rejected = true;
+            for (long length : new long[] {HEADER_SIZE / 2, HEADER_SIZE + 4, fileSize - 8}) {
+                Files.write(file, Arrays.copyOf(bytes, (int) length));
+                try {
+                    open(file, stamp);
+                    rejected = false;
+                } catch (IOException e) {
+                    /* Expected. */
+                }
+            }
+            System.out.println(rejected);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static String orEmpty(String text) {
+        return text != null ? text : "";
+    }
+}
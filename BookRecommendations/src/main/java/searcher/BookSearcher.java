@@ -6,22 +6,46 @@ package searcher;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 import javax.net.ssl.SSLContext;
+import co.elastic.clients.elasticsearch.ElasticsearchAsyncClient;
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.Level;
+import co.elastic.clients.elasticsearch._types.SortOrder;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.IdsQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.MatchPhraseQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.MatchQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.MultiMatchQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.Operator;
 import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch._types.query_dsl.RankFeatureQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.RangeQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.TermQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.TermsQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.TextQueryType;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
 import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.core.search.TotalHitsRelation;
+import co.elastic.clients.elasticsearch.indices.stats.IndicesStats;
+import co.elastic.clients.elasticsearch.indices.stats.ShardStats;
+import co.elastic.clients.json.JsonData;
 import co.elastic.clients.json.jackson.JacksonJsonpMapper;
 import co.elastic.clients.transport.ElasticsearchTransport;
 import co.elastic.clients.transport.TransportUtils;
@@ -29,6 +53,12 @@ import co.elastic.clients.transport.rest_client.RestClientTransport;
 import components.DisplayType;
 import components.QueryType;
 import components.UserProfile;
+import similarity.BookNeighborIndex;
+import similarity.FactorModel;
+import similarity.IdIndex;
+import similarity.LshIndex;
+import similarity.NeighborGraph;
+import similarity.NeighborSelector;
 import similarity.RatingMatrix;
 import similarity.Similarity;
 
@@ -41,15 +71,60 @@ import components.Book;
 
 public class BookSearcher {
 
-    final int SEARCH_LIMIT = 10000;
+    /* Books the exact query plan must find, or else fuzzy matching is used. */
+    int minExactHits = 20;
+
+    /* Hits retrieved (and re-ranked) per request, and books per page of results. */
+    int retrievalWindow = 300;
+    int pageSize = 100;
+
+    /* Popular queries count hits up to popularTotalHits only, so that the hits with the
+       best blend of text score and popularity can be collected without scoring all others. */
+    int popularTotalHits = 1000;
+
+    /* Neighbor selection for user queries. */
+    int neighborLimit = 500;
+    int minCoRated = 1;
+    double minSimilarity = 0.0;
+
+    /* Candidate generation for user queries, if built. This and the following are
+       set again (while searching) if the rating matrix they were built for is replaced. */
+    volatile LshIndex lshIndex;
+    int lshCandidates = 500;
+
+    /* Precomputed similar books for item queries, if built. */
+    volatile BookNeighborIndex bookNeighbors;
+
+    /* Trained factorization model for model queries, if any. */
+    volatile FactorModel factorModel;
+
+    /* Local copy of the indexed books, if any. Hits are then retrieved without _source. */
+    BookCatalog catalog;
+
+    /* Read books hidden from results are excluded by id in the query. Users who have read
+       more than maxExcludedIds books have them stored in readBooksIndex instead (by user id),
+       from where they are looked up, with the version of the user's ratings last stored. */
+    int maxExcludedIds = 1024;
+    String readBooksIndex;
+    final Map<Integer, Long> storedReadBooks = new ConcurrentHashMap<>();
 
     ElasticsearchClient esClient;
+    ElasticsearchAsyncClient esAsyncClient;
     String indexName;
 
+    /* Hits of retrieved windows by query, and boosted scores of windows by user. */
+    QueryCache<HitKey, HitList> hitCache = new QueryCache<>(256, 10 * 60 * 1000);
+    QueryCache<RankingKey, Ranking> rankingCache = new QueryCache<>(256, 10 * 60 * 1000);
+
+    /* Runs re-ranking of asynchronous searches, one virtual thread per search. */
+    final ExecutorService searchExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
 
     public BookSearcher(String host, int port, String fingerprint, String password, String indexName) {
         this.esClient = getClient(host, port, fingerprint, password);
+        this.esAsyncClient = new ElasticsearchAsyncClient(esClient._transport());
         this.indexName = indexName;
+        this.readBooksIndex = indexName + "-read-books";
     }
 
     /**
@@ -71,9 +146,615 @@ public class BookSearcher {
     }
 
     /**
-     * Sends given query to elasticsearch client and processes results
+     * Set how similar users are selected for user queries: at most neighborLimit users 
+     * with highest similarity, having rated at least minCoRated books in common with 
+     * the user, and having similarity at least minSimilarity.
+     */
+    public void setNeighborPolicy(int neighborLimit, int minCoRated, double minSimilarity) {
+        this.neighborLimit = neighborLimit;
+        this.minCoRated = minCoRated;
+        this.minSimilarity = minSimilarity;
+    }
+
+    /**
+     * Set how many hits are retrieved from elasticsearch and re-ranked at a time, and
+     * how many of the best are returned per page. The rest of a window is kept for the
+     * next pages, and the next window is retrieved with search_after when it runs out.
+     */
+    public void setResultWindow(int retrievalWindow, int pageSize) {
+        if (pageSize <= 0 || retrievalWindow < pageSize) {
+            throw new IllegalArgumentException("Invalid retrieval window/page size: " + retrievalWindow + "/" + pageSize);
+        }
+        this.retrievalWindow = retrievalWindow;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Select neighbors for user queries among at most maxCandidates users from lshIndex,
+     * instead of among all users who have rated any of the hits.
+     */
+    public void setLshIndex(LshIndex lshIndex, int maxCandidates) {
+        this.lshIndex = lshIndex;
+        this.lshCandidates = maxCandidates;
+    }
+
+    /**
+     * Set the precomputed similar books used for item queries.
+     */
+    public void setBookNeighbors(BookNeighborIndex bookNeighbors) {
+        this.bookNeighbors = bookNeighbors;
+    }
+
+    /**
+     * Set the factorization model used for model queries.
+     */
+    public void setFactorModel(FactorModel factorModel) {
+        this.factorModel = factorModel;
+    }
+
+    /**
+     * Set the catalog to take books from, so that only the id's of hits are retrieved.
+     * Hits of books missing from the catalog are left out.
+     */
+    public void setCatalog(BookCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Number of books in the index.
+     */
+    public long countBooks() throws IOException {
+        return esClient.count(c -> c.index(indexName)).count();
+    }
+
+    /**
+     * Stamp of the current contents of the index: hash of its UUID (which changes
+     * when the index is recreated) and the sum of the highest sequence numbers of its
+     * primary shards (which grows with every book indexed, updated or deleted).
+     */
+    public long[] indexStamp() throws IOException {
+        IndicesStats stats = esClient.indices().stats(s -> s.index(indexName).level(Level.Shards)).indices().values().iterator().next();
+        long maxSeqNo = 0;
+        for (List<ShardStats> copies : stats.shards().values()) {
+            for (ShardStats copy : copies) {
+                if (copy.routing() != null && copy.routing().primary() && copy.seqNo() != null) {
+                    maxSeqNo += copy.seqNo().maxSeqNo();
+                }
+            }
+        }
+        return new long[] { Objects.requireNonNull(stats.uuid()).hashCode(), maxSeqNo };
+    }
+
+    /**
+     * Pass every book in the index to consumer, in order of id.
+     */
+    public void forEachBook(Consumer<Book> consumer) throws IOException {
+        List<FieldValue> searchAfter = null;
+        while (true) {
+            List<FieldValue> after = searchAfter;
+            SearchResponse<Book> response = esClient.search(s -> s
+                            .index(indexName)
+                            .query(q -> q.matchAll(m -> m))
+                            .sort(so -> so.field(f -> f.field("id").order(SortOrder.Asc)))
+                            .searchAfter(after)
+                            .size(1000),
+                    Book.class);
+            List<Hit<Book>> hits = response.hits().hits();
+            for (Hit<Book> hit : hits) {
+                consumer.accept(hit.source());
+            }
+            if (hits.size() < 1000) {
+                return;
+            }
+            searchAfter = hits.get(hits.size() - 1).sort();
+        }
+    }
+
+    /**
+     * Query and the user it is ranked for.
+     */
+    record SearchContext(String queryTerms, SearchFilter filter, QueryType queryType, DisplayType displayType, UserProfile user, RatingMatrix ratingMatrix, Similarity similarity) {
+        /**
+         * True if the books rated by the user are to be left out of the hits.
+         */
+        boolean excludesReadBooks() {
+            return displayType == DisplayType.HIDE_READ_BOOKS && !user.getRatings().isEmpty();
+        }
+    }
+
+    /**
+     * Plans for matching query terms. The exact plan matches the terms in each field
+     * and applies phrase boosts to the first window only, by rescoring (see Window).
+     * The fuzzy plan also matches terms within edit distance 1, which is much more
+     * expensive (especially on abstracts), and is only used when the exact plan finds
+     * too few books.
+     */
+    enum QueryPlan {
+        EXACT, FUZZY
+    }
+
+    /**
+     * Window of hits to retrieve, after from hits retrieved before it: after the sort
+     * values searchAfter of the previous hit if not null, leaving out the books excludedIds.
+     * The rescored first window of the exact plan is not sorted by id, so books tied
+     * on score at its end could be retrieved again or skipped by the next windows.
+     * These leave out its books instead, and are sorted by score and id from there.
+     */
+    record Window(QueryPlan plan, int from, List<FieldValue> searchAfter, List<String> excludedIds) {
+        static Window first(QueryPlan plan) {
+            return new Window(plan, 0, null, List.of());
+        }
+
+        boolean rescored() {
+            return plan == QueryPlan.EXACT && from == 0;
+        }
+    }
+
+    /**
+     * Hits retrieved for a window: books (in order of retrieval) and their scores.
+     * window is the window actually retrieved, which has the fuzzy plan if the
+     * exact plan found too few books. Facets are only aggregated for the first window.
+     */
+    record HitList(Window window, List<Book> books, double[] scores, long totalHits, boolean totalHitsExact, Facets facets, Window next) {
+    }
+
+    /**
+     * Key of the hits of a window. Hits leaving out read books are only shared by
+     * searches of the same user and version of ratings, all others have user_id 0
+     * and userVersion -1.
+     */
+    record HitKey(String queryTerms, SearchFilter filter, boolean popular, QueryPlan plan, int from, int user_id, long userVersion) {
+        static HitKey of(SearchContext context, Window window) {
+            UserProfile user = context.user();
+            boolean excludes = context.excludesReadBooks();
+            return new HitKey(context.queryTerms(), context.filter(), context.queryType() == QueryType.POPULAR_QUERY,
+                    window.plan(), window.from(), excludes ? user.getId() : 0, excludes ? user.getVersion() : -1);
+        }
+    }
+
+    /**
+     * Books of a window shown to a user, with their boosted scores, and the similar
+     * users they were boosted with (null if not boosted by similar users).
+     */
+    record Ranking(List<Book> books, double[] scores, NeighborSelector.Neighbors neighbors) {
+    }
+
+    record RankingKey(int user_id, long userVersion, String queryTerms, SearchFilter filter, QueryType queryType, DisplayType displayType, QueryPlan plan, int from) {
+    }
+
+    /**
+     * Sends given query to elasticsearch client and processes results.
+     * Returns the first page of results.
      */
     public List<Book> searchBooks(String queryTerms, QueryType queryType, DisplayType displayType, UserProfile user, RatingMatrix ratingMatrix, Similarity similarity) throws IOException {
+        var context = new SearchContext(normalize(queryTerms), SearchFilter.NONE, queryType, displayType, user, ratingMatrix, similarity);
+        Window window = Window.first(QueryPlan.EXACT);
+        HitKey key = HitKey.of(context, window);
+        HitList hits = hitCache.get(key);
+        if (hits == null) {
+            long startTime = System.nanoTime();
+            storeReadBooks(context);
+            SearchResponse<Book> response = esClient.search(buildRequest(context, window), Book.class);
+            if (needsFuzzyPlan(window, response)) {
+                window = Window.first(QueryPlan.FUZZY);
+                response = esClient.search(buildRequest(context, window), Book.class);
+            }
+            hits = toHitList(window, response);
+            cacheHits(key, hits, System.nanoTime() - startTime);
+        }
+        return rankHits(context, null, hits, () -> false).getBooks();
+    }
+
+    /**
+     * Set the size and time to live of the caches of hits (per query) and of boosted
+     * rankings (per query and user). This clears the caches.
+     */
+    public void setCacheSize(int hitEntries, int rankingEntries, long ttlMillis) {
+        hitCache = new QueryCache<>(hitEntries, ttlMillis);
+        rankingCache = new QueryCache<>(rankingEntries, ttlMillis);
+    }
+
+    /**
+     * Invalidate the cached rankings of users whose ratings are changed in ratingMatrix.
+     * Rankings cached before are dropped, since they may be of another matrix.
+     */
+    public void attach(RatingMatrix ratingMatrix) {
+        rankingCache.invalidateIf(key -> true);
+        ratingMatrix.addListener((user_id, book_id, rating) -> rankingCache.invalidateIf(key -> key.user_id() == user_id));
+    }
+
+    /**
+     * Set the number of read books above which they are stored in the index and looked
+     * up by the query, instead of being sent with it, when read books are hidden.
+     */
+    public void setMaxExcludedIds(int maxExcludedIds) {
+        this.maxExcludedIds = maxExcludedIds;
+    }
+
+    public QueryCache.Stats getHitCacheStats() {
+        return hitCache.stats();
+    }
+
+    public QueryCache.Stats getRankingCacheStats() {
+        return rankingCache.stats();
+    }
+
+    /**
+     * Query terms in lower case, separated by single spaces.
+     */
+    static String normalize(String queryTerms) {
+        return queryTerms.toLowerCase(Locale.ROOT).trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Set the number of hits counted by popular queries. Hits beyond it are only
+     * scored if they can still beat the hits collected.
+     */
+    public void setPopularTotalHits(int popularTotalHits) {
+        this.popularTotalHits = popularTotalHits;
+    }
+
+    /**
+     * Set the number of books the exact plan must find for a query, or else the query
+     * is planned again with fuzzy matching. 0 never uses fuzzy matching.
+     */
+    public void setMinExactHits(int minExactHits) {
+        this.minExactHits = minExactHits;
+    }
+
+    /**
+     * Like searchBooks, but returns at once. The query is sent with the asynchronous
+     * client and the hits are re-ranked on a virtual thread.
+     *
+     * Cancelling the returned future aborts the HTTP request if it is still in flight,
+     * and otherwise stops re-ranking at its next stage. user should not be modified
+     * until the future completes (pass a copy). Re-ranking holds the lock of
+     * ratingMatrix, so ratings should be put while holding it as well.
+     */
+    public CompletableFuture<ResultPage> searchBooksAsync(String queryTerms, QueryType queryType, DisplayType displayType, UserProfile user, RatingMatrix ratingMatrix, Similarity similarity) {
+        return searchBooksAsync(queryTerms, SearchFilter.NONE, queryType, displayType, user, ratingMatrix, similarity);
+    }
+
+    /**
+     * Like searchBooksAsync, but only searches the books passing filter.
+     * The first page has the facets of all books matching the query and filter.
+     */
+    public CompletableFuture<ResultPage> searchBooksAsync(String queryTerms, SearchFilter filter, QueryType queryType, DisplayType displayType, UserProfile user, RatingMatrix ratingMatrix, Similarity similarity) {
+        return fetchPage(new SearchContext(normalize(queryTerms), filter, queryType, displayType, user, ratingMatrix, similarity), null);
+    }
+
+    /**
+     * Get the page of results after page. It is taken from the hits already retrieved
+     * while there are enough, and otherwise the next window of hits is retrieved.
+     */
+    public CompletableFuture<ResultPage> loadMoreAsync(ResultPage page) {
+        if (page.rest.size() >= pageSize || page.next == null) {
+            return CompletableFuture.completedFuture(selectPage(page.context, page.rest, page.restScores, page.next, page.getTotalHits(), page.isTotalHitsExact(), page.getFacets(), page.getOffset() + page.getBooks().size(), page.neighbors));
+        }
+        return fetchPage(page.context, page);
+    }
+
+    /**
+     * Retrieve the window of hits after previous (or the first) and rank it together
+     * with the hits left over from previous.
+     */
+    private CompletableFuture<ResultPage> fetchPage(SearchContext context, ResultPage previous) {
+        CompletableFuture<ResultPage> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<SearchResponse<Book>>> inFlight = new AtomicReference<>();
+        result.whenComplete((books, e) -> {
+            var request = inFlight.get();
+            if (result.isCancelled() && request != null) {
+                request.cancel(true);
+            }
+        });
+        Window window = previous != null ? previous.next : Window.first(QueryPlan.EXACT);
+        HitKey key = HitKey.of(context, window);
+        HitList hits = hitCache.get(key);
+        if (hits != null) {
+            searchExecutor.execute(() -> completeRanked(result, context, previous, hits));
+        } else if (needsStoredReadBooks(context)) {
+            long startTime = System.nanoTime();
+            searchExecutor.execute(() -> {
+                try {
+                    storeReadBooks(context);
+                } catch (IOException | ElasticsearchException e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                if (!result.isDone()) {
+                    sendWindow(result, inFlight, context, previous, window, key, startTime);
+                }
+            });
+        } else {
+            sendWindow(result, inFlight, context, previous, window, key, System.nanoTime());
+        }
+        return result;
+    }
+
+    /**
+     * True if the read books of the user of context are to be looked up by the query,
+     * and the index does not have the current version of them yet.
+     */
+    private boolean needsStoredReadBooks(SearchContext context) {
+        UserProfile user = context.user();
+        return context.excludesReadBooks() && user.getRatings().size() > maxExcludedIds
+                && !Objects.equals(storedReadBooks.get(user.getId()), user.getVersion());
+    }
+
+    /**
+     * Store the read books of the user of context in readBooksIndex, if the query
+     * is to look them up there and they have changed since they were last stored.
+     * Lookups get the document in real time, so the index need not be refreshed.
+     */
+    private void storeReadBooks(SearchContext context) throws IOException {
+        if (!needsStoredReadBooks(context)) {
+            return;
+        }
+        UserProfile user = context.user();
+        int[] bookIds = user.getRatings().keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        esClient.index(i -> i
+                .index(readBooksIndex)
+                .id(String.valueOf(user.getId()))
+                .document(Map.of("book_ids", bookIds)));
+        storedReadBooks.put(user.getId(), user.getVersion());
+    }
+
+    /**
+     * Send the request of window and complete result with the page ranked from its
+     * response, or send the first window of the fuzzy plan if the exact plan finds too
+     * few books. The hits are cached under key. The request in flight is kept in
+     * inFlight, so that it can be cancelled.
+     */
+    private void sendWindow(CompletableFuture<ResultPage> result, AtomicReference<CompletableFuture<SearchResponse<Book>>> inFlight, SearchContext context, ResultPage previous, Window window, HitKey key, long startTime) {
+        CompletableFuture<SearchResponse<Book>> request = esAsyncClient.search(buildRequest(context, window), Book.class);
+        inFlight.set(request);
+        if (result.isCancelled()) {
+            request.cancel(true);
+        }
+        request.whenCompleteAsync((response, e) -> {
+            if (result.isDone()) {
+                return;
+            }
+            if (e != null) {
+                result.completeExceptionally(e);
+                return;
+            }
+            if (needsFuzzyPlan(window, response)) {
+                sendWindow(result, inFlight, context, previous, Window.first(QueryPlan.FUZZY), key, startTime);
+                return;
+            }
+            HitList hits;
+            try {
+                hits = toHitList(window, response);
+            } catch (RuntimeException ex) {
+                result.completeExceptionally(ex);
+                return;
+            }
+            cacheHits(key, hits, System.nanoTime() - startTime);
+            completeRanked(result, context, previous, hits);
+        }, searchExecutor);
+    }
+
+    /**
+     * Cache hits under key. Hits leaving out earlier read books of the user will not
+     * be used again.
+     */
+    private void cacheHits(HitKey key, HitList hits, long costNanos) {
+        if (key.userVersion() >= 0) {
+            hitCache.invalidateIf(other -> other.user_id() == key.user_id() && other.userVersion() >= 0 && other.userVersion() != key.userVersion());
+        }
+        hitCache.put(key, hits, costNanos);
+    }
+
+    /**
+     * Complete result with the page ranked from hits, unless it is cancelled.
+     */
+    private void completeRanked(CompletableFuture<ResultPage> result, SearchContext context, ResultPage previous, HitList hits) {
+        try {
+            result.complete(rankHits(context, previous, hits, result::isCancelled));
+        } catch (CancellationException ex) {
+            result.cancel(false);
+        } catch (RuntimeException ex) {
+            result.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * True if response is of the first window of the exact plan, and it found
+     * fewer than minExactHits books.
+     */
+    private boolean needsFuzzyPlan(Window window, SearchResponse<Book> response) {
+        if (window.plan() != QueryPlan.EXACT || window.from() != 0) {
+            return false;
+        }
+        long totalHits = response.hits().total() != null ? response.hits().total().value() : response.hits().hits().size();
+        return totalHits < minExactHits;
+    }
+
+    /**
+     * Build the request of window for the query terms of context, matching title, abstract,
+     * author, series and genres, and leaving out books not passing the filter and read books
+     * if they are hidden. The first window also aggregates the facets of all matching books,
+     * except for popular queries, which add the popularity of books to their text scores
+     * and only count popularTotalHits hits. Aggregating or counting all hits would have to
+     * score them all, while otherwise Elasticsearch skips blocks of hits whose best possible
+     * score cannot make it to the top hits (block-max WAND).
+     * The first window of the exact plan is rescored with the phrase boosts (which rescoring
+     * does not allow to sort). Other windows are sorted by score and id, so that the next
+     * window can be retrieved after the sort values of the last hit, and leave out the books
+     * of the rescored window.
+     */
+    private SearchRequest buildRequest(SearchContext context, Window window) {
+        String queryTerms = context.queryTerms();
+        boolean rescore = window.rescored();
+        boolean popular = context.queryType() == QueryType.POPULAR_QUERY;
+        Query textMatches = window.plan() == QueryPlan.EXACT ? exactQuery(queryTerms) : fuzzyQuery(queryTerms);
+        Query matches = popular
+                ? BoolQuery.of(b -> b.must(textMatches).should(popularityQueries()))._toQuery()
+                : textMatches;
+        List<Query> filters = filterQueries(context.filter());
+        Query query = context.excludesReadBooks() || !filters.isEmpty() || !window.excludedIds().isEmpty()
+                ? BoolQuery.of(b -> {
+                    b.must(matches).filter(filters);
+                    if (context.excludesReadBooks()) {
+                        b.mustNot(readBooksQuery(context.user()));
+                    }
+                    if (!window.excludedIds().isEmpty()) {
+                        b.mustNot(IdsQuery.of(i -> i.values(window.excludedIds()))._toQuery());
+                    }
+                    return b;
+                })._toQuery()
+                : matches;
+        return SearchRequest.of(s -> {
+            s.index(indexName)
+                    .query(query)
+                    .source(src -> src.fetch(catalog == null))
+                    .size(retrievalWindow);
+            if (popular) {
+                s.trackTotalHits(t -> t.count(popularTotalHits));
+            } else if (window.from() == 0) {
+                addFacetAggregations(s);
+            }
+            if (rescore) {
+                s.rescore(r -> r
+                        .windowSize(retrievalWindow)
+                        .query(rq -> rq
+                                .query(phraseQuery(queryTerms))
+                                .queryWeight(1.0)
+                                .rescoreQueryWeight(1.0)));
+            } else {
+                s.sort(so -> so.score(sc -> sc.order(SortOrder.Desc)))
+                        .sort(so -> so.field(f -> f.field("id").order(SortOrder.Asc)));
+                /* The window after the rescored one starts at the top of the books left out of it. */
+                if (window.searchAfter() != null) {
+                    s.searchAfter(window.searchAfter());
+                }
+            }
+            return s;
+        });
+    }
+
+    /**
+     * Popularity of books as scored clauses, from their rank features (see indexer.py).
+     * Each clause saturates towards its boost, with half of it at the pivot (by default
+     * the geometric mean of the feature), so that popularity lifts but does not swamp
+     * text scores.
+     */
+    private static List<Query> popularityQueries() {
+        return List.of(
+                RankFeatureQuery.of(r -> r.field("popularity.numRatings").saturation(sa -> sa).boost(4.0F))._toQuery(),
+                RankFeatureQuery.of(r -> r.field("popularity.numReviews").saturation(sa -> sa).boost(2.0F))._toQuery(),
+                RankFeatureQuery.of(r -> r.field("popularity.rating").saturation(sa -> sa.pivot(4.0F)).boost(2.0F))._toQuery());
+    }
+
+    /**
+     * Clauses of filter, matching genres (a keyword field), author and series by
+     * their keyword fields.
+     */
+    private static List<Query> filterQueries(SearchFilter filter) {
+        List<Query> filters = new ArrayList<>();
+        for (String genre : filter.genres()) {
+            filters.add(TermQuery.of(t -> t.field("genres").value(genre))._toQuery());
+        }
+        if (filter.author() != null) {
+            filters.add(TermQuery.of(t -> t.field("author.keyword").value(filter.author()))._toQuery());
+        }
+        if (filter.series() != null) {
+            filters.add(TermQuery.of(t -> t.field("series.keyword").value(filter.series()))._toQuery());
+        }
+        if (filter.minRating() != null || filter.maxRating() != null) {
+            filters.add(RangeQuery.of(r -> {
+                r.field("rating");
+                if (filter.minRating() != null) {
+                    r.gte(JsonData.of(filter.minRating()));
+                }
+                if (filter.maxRating() != null) {
+                    r.lt(JsonData.of(filter.maxRating()));
+                }
+                return r;
+            })._toQuery());
+        }
+        if (filter.minNumRatings() != null) {
+            filters.add(RangeQuery.of(r -> r.field("numRatings").gte(JsonData.of(filter.minNumRatings())))._toQuery());
+        }
+        return filters;
+    }
+
+    /**
+     * Aggregate the facets of all books matching the query of s (see Facets).
+     */
+    private static void addFacetAggregations(SearchRequest.Builder s) {
+        s.aggregations("genres", a -> a.terms(t -> t.field("genres").size(20)))
+                .aggregations("authors", a -> a.terms(t -> t.field("author.keyword").size(10)))
+                .aggregations("series", a -> a.terms(t -> t.field("series.keyword").size(10)))
+                .aggregations("ratings", a -> a.histogram(h -> h.field("rating").interval(Facets.RATING_STEP).minDocCount(1)))
+                .aggregations("numRatings", a -> a.range(r -> {
+                    r.field("numRatings");
+                    for (int step : Facets.NUM_RATINGS_STEPS) {
+                        r.ranges(rg -> rg.key(String.valueOf(step)).from(String.valueOf(step)));
+                    }
+                    return r;
+                }));
+    }
+
+    /**
+     * Books read by user, to exclude in filter context (must_not) so that they are
+     * neither scored nor retrieved. The ids are sent with the query, or looked up in
+     * readBooksIndex if there are more than maxExcludedIds of them.
+     */
+    private Query readBooksQuery(UserProfile user) {
+        if (user.getRatings().size() > maxExcludedIds) {
+            return TermsQuery.of(t -> t
+                    .field("_id")
+                    .terms(tv -> tv.lookup(l -> l
+                            .index(readBooksIndex)
+                            .id(String.valueOf(user.getId()))
+                            .path("book_ids")))
+            )._toQuery();
+        }
+        List<String> bookIds = user.getRatings().keySet().stream().map(String::valueOf).toList();
+        return IdsQuery.of(i -> i.values(bookIds))._toQuery();
+    }
+
+    /**
+     * Exact plan: the terms (any, and all of them) in each field, with the same
+     * boosts as the corresponding clauses of the fuzzy plan.
+     */
+    private Query exactQuery(String queryTerms) {
+        List<String> fields = List.of("title^0.7", "abstr^1.0", "author^0.8", "series^0.7", "genres.text^1.3");
+        Query anyTerms = MultiMatchQuery.of(m -> m
+                .fields(fields)
+                .query(queryTerms)
+                .type(TextQueryType.MostFields)
+        )._toQuery();
+        Query allTerms = MultiMatchQuery.of(m -> m
+                .fields(fields)
+                .query(queryTerms)
+                .type(TextQueryType.MostFields)
+                .operator(Operator.And)
+        )._toQuery();
+        return BoolQuery.of(b -> b
+                .should(anyTerms)
+                .should(allTerms)
+        )._toQuery();
+    }
+
+    /**
+     * Phrase boosts of the exact plan, applied when rescoring.
+     */
+    private Query phraseQuery(String queryTerms) {
+        return BoolQuery.of(b -> b
+                .should(MatchPhraseQuery.of(m -> m.field("title").query(queryTerms).boost(1.0F))._toQuery())
+                .should(MatchPhraseQuery.of(m -> m.field("abstr").query(queryTerms).boost(1.0F))._toQuery())
+                .should(MatchPhraseQuery.of(m -> m.field("author").query(queryTerms).boost(1.0F))._toQuery())
+                .should(MatchPhraseQuery.of(m -> m.field("series").query(queryTerms).boost(0.7F))._toQuery())
+        )._toQuery();
+    }
+
+    /**
+     * Fuzzy plan: exact, fuzzy, all terms, all terms fuzzy and phrase matches in each field.
+     */
+    private Query fuzzyQuery(String queryTerms) {
         Query byTitle = MatchQuery.of(m -> m
                 .field("title")
                 .query(queryTerms)
@@ -191,113 +872,297 @@ public class BookSearcher {
                 .boost(0.7F)
         )._toQuery();
         Query byGenre = MatchQuery.of(m -> m
-                .field("genres")
+                .field("genres.text")
                 .query(queryTerms)
                 .boost(1.3F)
         )._toQuery();
         Query byGenreFuzzy = MatchQuery.of(m -> m
-                .field("genres")
+                .field("genres.text")
                 .query(queryTerms)
                 .fuzziness("1")
                 .boost(0.13F)
         )._toQuery();
         Query byGenreAnd = MatchQuery.of(m -> m
-                .field("genres")
+                .field("genres.text")
                 .query(queryTerms)
                 .boost(1.3F)
                 .operator(Operator.And)
         )._toQuery();
         Query byGenreAndFuzzy = MatchQuery.of(m -> m
-                .field("genres")
+                .field("genres.text")
                 .query(queryTerms)
                 .fuzziness("1")
                 .boost(0.13F)
                 .operator(Operator.And)
         )._toQuery();
-        SearchResponse<Book> response = esClient.search(s -> s
-                        .index(indexName)
-                        .query(q -> q
-                                .bool(b -> b
-                                        .should(byTitle)
-                                        .should(byTitleFuzzy)
-                                        .should(byTitleAnd)
-                                        .should(byTitleAndFuzzy)
-                                        .should(byTitlePhrase)
-                                        .should(byAbstract)
-                                        .should(byAbstractFuzzy)
-                                        .should(byAbstractAnd)
-                                        .should(byAbstractAndFuzzy)
-                                        .should(byAbstractPhrase)
-                                        .should(byAuthor)
-                                        .should(byAuthorFuzzy)
-                                        .should(byAuthorAnd)
-                                        .should(byAuthorAndFuzzy)
-                                        .should(byAuthorPhrase)
-                                        .should(bySeries)
-                                        .should(bySeriesFuzzy)
-                                        .should(bySeriesAnd)
-                                        .should(bySeriesAndFuzzy)
-                                        .should(bySeriesPhrase)
-                                        .should(byGenre)
-                                        .should(byGenreFuzzy)
-                                        .should(byGenreAnd)
-                                        .should(byGenreAndFuzzy)
-                                ))
-                        .size(SEARCH_LIMIT),
-                Book.class);
+        return BoolQuery.of(b -> b
+                .should(byTitle)
+                .should(byTitleFuzzy)
+                .should(byTitleAnd)
+                .should(byTitleAndFuzzy)
+                .should(byTitlePhrase)
+                .should(byAbstract)
+                .should(byAbstractFuzzy)
+                .should(byAbstractAnd)
+                .should(byAbstractAndFuzzy)
+                .should(byAbstractPhrase)
+                .should(byAuthor)
+                .should(byAuthorFuzzy)
+                .should(byAuthorAnd)
+                .should(byAuthorAndFuzzy)
+                .should(byAuthorPhrase)
+                .should(bySeries)
+                .should(bySeriesFuzzy)
+                .should(bySeriesAnd)
+                .should(bySeriesAndFuzzy)
+                .should(bySeriesPhrase)
+                .should(byGenre)
+                .should(byGenreFuzzy)
+                .should(byGenreAnd)
+                .should(byGenreAndFuzzy)
+        )._toQuery();
+    }
+
+    /**
+     * Books and scores of the hits of response, which retrieved window. Books are
+     * taken from the catalog if there is one, leaving out books missing from it.
+     */
+    private HitList toHitList(Window window, SearchResponse<Book> response) {
         List<Hit<Book>> hits = response.hits().hits();
-        List<Book> results = new ArrayList<>();
+        List<Book> books = new ArrayList<>(hits.size());
+        double[] scores = new double[hits.size()];
         for (Hit<Book> hit : hits) {
-            if (displayType == DisplayType.SHOW_READ_BOOKS || (user.getRating(Objects.requireNonNull(hit.source()).getId()) == 0))  results.add(hit.source());
-        }
-        if (queryType == QueryType.USER_QUERY && !user.getRatings().isEmpty()) {
-            Set<Integer> similarUserIds = new HashSet<>();
-            for (var book : results) {
-                int book_id = book.getId();
-                var users = ratingMatrix.getUsersFromBook(book_id);
-                if (users != null) {
-                    similarUserIds.addAll(users); // Expand set.
-                }
+            Book book = catalog != null ? catalog.get(Integer.parseInt(hit.id())) : Objects.requireNonNull(hit.source());
+            if (book != null) {
+                scores[books.size()] = hit.score() != null ? hit.score() : 0.0;
+                books.add(book);
             }
-            similarUserIds.remove(user.getId()); // Remove current user from similar users.
-            List<Integer> similarUsers = new ArrayList<>(similarUserIds);
-
-            Map<Integer, Double> boostedScores = getBoostedScores(hits, user, similarUsers, ratingMatrix, similarity);
-            results.sort(new Comparator<Book>() {
-                @Override
-                public int compare(Book b1, Book b2) {
-                    return (int)Math.signum(boostedScores.get(b2.getId()) - boostedScores.get(b1.getId()));
+        }
+        Window next = null;
+        if (hits.size() == retrievalWindow) {
+            List<FieldValue> lastSort = hits.get(hits.size() - 1).sort();
+            List<String> excludedIds = window.rescored() ? hits.stream().map(Hit::id).toList() : window.excludedIds();
+            next = new Window(window.plan(), window.from() + hits.size(), lastSort.isEmpty() ? null : lastSort, excludedIds);
+        }
+        long totalHits = response.hits().total() != null ? response.hits().total().value() : hits.size();
+        boolean totalHitsExact = response.hits().total() == null || response.hits().total().relation() == TotalHitsRelation.Eq;
+        Facets facets = window.from() == 0 ? Facets.of(response.aggregations()) : null;
+        return new HitList(window, books, Arrays.copyOf(scores, books.size()), totalHits, totalHitsExact, facets, next);
+    }
+
+    /**
+     * Filter and boost hits for the user of context, and select the next page among
+     * them and the hits left over from previous. Throws CancellationException between
+     * stages once cancelled returns true.
+     *
+     * Similar users are selected for the first window of a user query only (see
+     * selectNeighbors) and carried from page to page, so that the hits of every
+     * window are boosted by the same users.
+     */
+    private ResultPage rankHits(SearchContext context, ResultPage previous, HitList hits, BooleanSupplier cancelled) {
+        UserProfile user = context.user();
+        Window window = hits.window();
+        RankingKey key = new RankingKey(user.getId(), user.getVersion(), context.queryTerms(), context.filter(), context.queryType(), context.displayType(), window.plan(), window.from());
+        Ranking ranking = rankingCache.get(key);
+        if (ranking == null) {
+            /* Rankings for earlier ratings of the user will not be used again. */
+            rankingCache.invalidateIf(other -> other.user_id() == key.user_id() && other.userVersion() != key.userVersion());
+            long startTime = System.nanoTime();
+            ranking = boost(context, hits, previous != null ? previous.neighbors : null, cancelled);
+            rankingCache.put(key, ranking, System.nanoTime() - startTime);
+        }
+        List<Book> results = ranking.books();
+        double[] scores = ranking.scores();
+
+        /* Boosts depend only on the book, the user and the similar users selected for the
+           first window, so left over hits compare with new ones. Rescoring only adds to the
+           scores of the first window, whose books already score at least as high as those
+           of later windows, which leave them out. */
+        if (previous != null && !previous.rest.isEmpty()) {
+            List<Book> merged = new ArrayList<>(previous.rest);
+            merged.addAll(results);
+            double[] mergedScores = Arrays.copyOf(previous.restScores, merged.size());
+            System.arraycopy(scores, 0, mergedScores, previous.restScores.length, scores.length);
+            results = merged;
+            scores = mergedScores;
+        }
+        int offset = previous != null ? previous.getOffset() + previous.getBooks().size() : 0;
+        Facets facets = previous != null ? previous.getFacets() : hits.facets();
+        NeighborSelector.Neighbors neighbors = previous != null ? previous.neighbors : ranking.neighbors();
+        return selectPage(context, results, scores, hits.next(), hits.totalHits(), hits.totalHitsExact(), facets, offset, neighbors);
+    }
+
+    /**
+     * Boost the scores of hits as specified by the query type of context. Books read
+     * by the user are already left out of the hits if they are hidden. User queries
+     * boost by neighbors if not null, and otherwise select them among the hits.
+     */
+    private Ranking boost(SearchContext context, HitList hits, NeighborSelector.Neighbors neighbors, BooleanSupplier cancelled) {
+        QueryType queryType = context.queryType();
+        UserProfile user = context.user();
+        RatingMatrix ratingMatrix = context.ratingMatrix();
+        Similarity similarity = context.similarity();
+        List<Book> results = hits.books();
+        double[] scores = hits.scores();
+
+        boolean userBoost = queryType == QueryType.USER_QUERY;
+        boolean itemBoost = queryType == QueryType.ITEM_QUERY && bookNeighbors != null;
+        boolean modelBoost = queryType == QueryType.MODEL_QUERY && factorModel != null;
+        if ((userBoost || itemBoost || modelBoost) && !user.getRatings().isEmpty() && !results.isEmpty()) {
+            int[] bookIds = new int[results.size()];
+            double[] baseScores = scores;
+            for (int i = 0; i < bookIds.length; ++i) {
+                bookIds[i] = results.get(i).getId();
+            }
+            double[] boostedScores;
+            synchronized (ratingMatrix) {
+                checkCancelled(cancelled);
+                if (userBoost) {
+                    if (neighbors == null) {
+                        neighbors = selectNeighbors(bookIds, user, ratingMatrix, similarity);
+                    }
+                    checkCancelled(cancelled);
+                    boostedScores = new UserBoostScorer(ratingMatrix).score(bookIds, baseScores, neighbors.userIds(), neighbors.simScores());
+                } else if (itemBoost) {
+                    boostedScores = new ItemBoostScorer(bookNeighbors).score(bookIds, baseScores, user.getRatings());
+                } else {
+                    boostedScores = new FactorBoostScorer(factorModel).score(bookIds, baseScores, user.getId());
                 }
-            });
+            }
+            checkCancelled(cancelled);
+            scores = boostedScores;
         }
-        return results;
+        return new Ranking(results, scores, userBoost ? neighbors : null);
     }
 
-    private Map<Integer, Double> getBoostedScores(List<Hit<Book>> hits, UserProfile user, List<Integer> similarUsers, RatingMatrix ratingMatrix, Similarity similarity) {
-        Map<Integer, Double> boosts = new HashMap<>();
+    private static void checkCancelled(BooleanSupplier cancelled) {
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException("Search cancelled");
+        }
+    }
 
-        List<Double> simScores = new ArrayList<>();
-        for (var similarUser : similarUsers) {
-            simScores.add(similarity.sim(user.getId(), similarUser));
+    /**
+     * Select similar users to boost hits with. These are the precomputed neighbors of
+     * the user if similarity is a NeighborGraph containing the user, and otherwise 
+     * selected among the LSH candidates of the user if there is an LSH index, or 
+     * among the users who have rated any of the hits (of the first window).
+     */
+    private NeighborSelector.Neighbors selectNeighbors(int[] bookIds, UserProfile user, RatingMatrix ratingMatrix, Similarity similarity) {
+        if (similarity instanceof NeighborGraph graph) {
+            if (graph.contains(user.getId())) {
+                return graph.neighbors(user.getId());
+            }
+            similarity = graph.getFallback();
+        }
+        var selector = new NeighborSelector(ratingMatrix, similarity, neighborLimit, minCoRated, minSimilarity);
+        if (lshIndex != null) {
+            return selector.select(user.getId(), lshIndex.candidates(user.getId(), lshCandidates));
         }
 
-        for (Hit<Book> hit : hits) {
-            if (hit.source() != null) {
-                int bookId = hit.source().getId();
-                boosts.put(bookId, hit.score());
-                for (int i = 0; i < similarUsers.size(); ++i) {
-                    boosts.put(bookId, boosts.get(bookId) + boostFunction(simScores.get(i), ratingMatrix.getRating(similarUsers.get(i), bookId)));
+        IdIndex similarUsers = new IdIndex();
+        for (int bookId : bookIds) {
+            ratingMatrix.forEachUserOfBook(bookId, (user_id, rating) -> similarUsers.getOrAdd(user_id)); // Expand set.
+        }
+        int[] candidateIds = new int[similarUsers.size()];
+        int numCandidates = 0;
+        for (int j = 0; j < similarUsers.size(); ++j) {
+            if (similarUsers.getId(j) != user.getId()) { // Remove current user from similar users.
+                candidateIds[numCandidates++] = similarUsers.getId(j);
+            }
+        }
+        candidateIds = Arrays.copyOf(candidateIds, numCandidates);
+        return selector.select(user.getId(), candidateIds);
+    }
+
+    /**
+     * Make the page of the pageSize books with highest scores, keeping the others
+     * (in their order) for the next pages.
+     */
+    private ResultPage selectPage(SearchContext context, List<Book> books, double[] scores, Window next, long totalHits, boolean totalHitsExact, Facets facets, int offset, NeighborSelector.Neighbors neighbors) {
+        int[] top = topK(scores, pageSize);
+        boolean[] selected = new boolean[books.size()];
+        List<Book> page = new ArrayList<>(top.length);
+        for (int i : top) {
+            page.add(books.get(i));
+            selected[i] = true;
+        }
+        List<Book> rest = new ArrayList<>(books.size() - top.length);
+        double[] restScores = new double[books.size() - top.length];
+        for (int i = 0; i < books.size(); ++i) {
+            if (!selected[i]) {
+                restScores[rest.size()] = scores[i];
+                rest.add(books.get(i));
+            }
+        }
+        return new ResultPage(page, totalHits, totalHitsExact, facets, offset, context, rest, restScores, next, neighbors);
+    }
+
+    /**
+     * Positions of the k highest scores, best first. Ties keep their order.
+     * Selects with a min-heap of size k, so only k of the positions are sorted.
+     */
+    static int[] topK(double[] scores, int k) {
+        k = Math.min(k, scores.length);
+        int[] heap = new int[k];
+        int size = 0;
+        for (int i = 0; i < scores.length; ++i) {
+            if (size < k) {
+                /* Sift up. */
+                int j = size++;
+                while (j > 0 && worse(scores, i, heap[(j - 1) / 2])) {
+                    heap[j] = heap[(j - 1) / 2];
+                    j = (j - 1) / 2;
+                }
+                heap[j] = i;
+            } else if (k > 0 && worse(scores, heap[0], i)) {
+                /* Replace worst and sift down. */
+                int j = 0;
+                while (true) {
+                    int child = 2 * j + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && worse(scores, heap[child + 1], heap[child])) {
+                        ++child;
+                    }
+                    if (!worse(scores, heap[child], i)) {
+                        break;
+                    }
+                    heap[j] = heap[child];
+                    j = child;
+                }
+                heap[j] = i;
+            }
+        }
+        /* Pop worst first into the back. */
+        int[] top = new int[k];
+        while (size > 0) {
+            top[size - 1] = heap[0];
+            int last = heap[--size];
+            int j = 0;
+            while (true) {
+                int child = 2 * j + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && worse(scores, heap[child + 1], heap[child])) {
+                    ++child;
+                }
+                if (!worse(scores, heap[child], last)) {
+                    break;
                 }
+                heap[j] = heap[child];
+                j = child;
             }
+            heap[j] = last;
         }
-        return boosts;
+        return top;
     }
 
     /**
-     * Boosting function for given user similarity score and book rating
+     * True if position a ranks below position b: lower score, or equal score and later.
      */
-    private double boostFunction(double simScore, double rating) {
-        if (rating == 0) return 0.0;
-        return 2.5e4*simScore*Math.pow(rating-3, 2)*Math.signum(rating-3);
+    private static boolean worse(double[] scores, int a, int b) {
+        return scores[a] < scores[b] || (scores[a] == scores[b] && a > b);
     }
 }
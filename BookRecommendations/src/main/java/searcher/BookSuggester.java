@@ -0,0 +1,93 @@
+/**
+ * Suggestions of titles, authors and series for search-as-you-type
+ */
+
+package searcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import co.elastic.clients.elasticsearch.ElasticsearchAsyncClient;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.CompletionSuggestOption;
+import co.elastic.clients.elasticsearch.core.search.Suggestion;
+
+/**
+ * Completes prefixes with the completion suggester of the "suggest" field
+ * (title, author and series, see indexer.py), which is answered from an
+ * in-memory FST without running a query. Only the latest request is kept
+ * in flight, and suggestions of recent prefixes are cached.
+ */
+public class BookSuggester {
+    private static final String SUGGESTION_NAME = "books";
+
+    private final ElasticsearchAsyncClient esAsyncClient;
+    private final String indexName;
+    private final int maxSuggestions;
+    private final QueryCache<String, List<String>> prefixCache;
+
+    private CompletableFuture<List<String>> pending;
+
+    /**
+     * Suggester of at most maxSuggestions completions from the index of searcher,
+     * caching the suggestions of up to cacheSize prefixes.
+     */
+    public BookSuggester(BookSearcher searcher, int maxSuggestions, int cacheSize) {
+        this.esAsyncClient = searcher.esAsyncClient;
+        this.indexName = searcher.indexName;
+        this.maxSuggestions = maxSuggestions;
+        this.prefixCache = new QueryCache<>(cacheSize, 10 * 60 * 1000);
+    }
+
+    /**
+     * Get completions of prefix. A request still in flight for an earlier
+     * prefix is cancelled.
+     */
+    public synchronized CompletableFuture<List<String>> suggest(String prefix) {
+        if (pending != null) {
+            pending.cancel(true);
+            pending = null;
+        }
+        String normalized = BookSearcher.normalize(prefix);
+        List<String> cached = prefixCache.get(normalized);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        long startTime = System.nanoTime();
+        CompletableFuture<SearchResponse<Void>> request = esAsyncClient.search(s -> s
+                        .index(indexName)
+                        .size(0)
+                        .source(src -> src.fetch(false))
+                        .suggest(su -> su
+                                .suggesters(SUGGESTION_NAME, fs -> fs
+                                        .prefix(normalized)
+                                        .completion(c -> c
+                                                .field("suggest")
+                                                .size(maxSuggestions)
+                                                .skipDuplicates(true)))),
+                Void.class);
+        CompletableFuture<List<String>> result = request.thenApply(response -> {
+            List<String> suggestions = new ArrayList<>();
+            for (Suggestion<Void> suggestion : response.suggest().getOrDefault(SUGGESTION_NAME, List.of())) {
+                for (CompletionSuggestOption<Void> option : suggestion.completion().options()) {
+                    suggestions.add(option.text());
+                }
+            }
+            prefixCache.put(normalized, suggestions, System.nanoTime() - startTime);
+            return suggestions;
+        });
+        /* Cancelling the result aborts the request. */
+        result.whenComplete((suggestions, e) -> {
+            if (result.isCancelled()) {
+                request.cancel(true);
+            }
+        });
+        pending = result;
+        return result;
+    }
+
+    public QueryCache.Stats getCacheStats() {
+        return prefixCache.stats();
+    }
+}
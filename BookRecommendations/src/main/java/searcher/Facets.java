@@ -0,0 +1,73 @@
+/**
+ * Facet counts of the books matching a search
+ */
+
+package searcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregate;
+import co.elastic.clients.elasticsearch._types.aggregations.HistogramBucket;
+import co.elastic.clients.elasticsearch._types.aggregations.RangeBucket;
+import co.elastic.clients.elasticsearch._types.aggregations.StringTermsBucket;
+
+/**
+ * Most frequent genres, authors and series among the books matching a search,
+ * and the number of them by rating (in steps of RATING_STEP) and by number of
+ * ratings (at least each of NUM_RATINGS_STEPS), for the filters of the next search.
+ */
+public record Facets(List<Count> genres, List<Count> authors, List<Count> series, List<Count> ratings, List<Count> numRatings) {
+
+    public static final double RATING_STEP = 0.5;
+    public static final int[] NUM_RATINGS_STEPS = {1000, 10000, 100000, 1000000};
+
+    public static final Facets NONE = new Facets(List.of(), List.of(), List.of(), List.of(), List.of());
+
+    /**
+     * Number of books with value. Values of ratings are the lower bounds of
+     * their steps, and values of numRatings the minimum number of ratings.
+     */
+    public record Count(String value, long count) {
+    }
+
+    /**
+     * Facets from the aggregations requested by BookSearcher.
+     */
+    static Facets of(Map<String, Aggregate> aggregations) {
+        if (aggregations.isEmpty()) {
+            return NONE;
+        }
+        return new Facets(terms(aggregations.get("genres")), terms(aggregations.get("authors")), terms(aggregations.get("series")),
+                histogram(aggregations.get("ratings")), ranges(aggregations.get("numRatings")));
+    }
+
+    private static List<Count> terms(Aggregate aggregate) {
+        List<Count> counts = new ArrayList<>();
+        for (StringTermsBucket bucket : aggregate.sterms().buckets().array()) {
+            if (!bucket.key().stringValue().isEmpty()) {
+                counts.add(new Count(bucket.key().stringValue(), bucket.docCount()));
+            }
+        }
+        return counts;
+    }
+
+    private static List<Count> histogram(Aggregate aggregate) {
+        List<Count> counts = new ArrayList<>();
+        for (HistogramBucket bucket : aggregate.histogram().buckets().array()) {
+            counts.add(new Count(String.valueOf(bucket.key()), bucket.docCount()));
+        }
+        return counts;
+    }
+
+    private static List<Count> ranges(Aggregate aggregate) {
+        List<Count> counts = new ArrayList<>();
+        for (RangeBucket bucket : aggregate.range().buckets().array()) {
+            if (bucket.docCount() > 0) {
+                counts.add(new Count(bucket.key(), bucket.docCount()));
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Personalized boosting of search results from the predicted ratings of a matrix factorization model
+ */
+
+package searcher;
+
+import similarity.FactorModel;
+import similarity.Kernels;
+
+public class FactorBoostScorer {
+
+    /* Score added for a predicted rating 1 above the mean rating. */
+    final double BOOST_WEIGHT = 5.0;
+
+    private final FactorModel model;
+
+    public FactorBoostScorer(FactorModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Boost the base scores of the hits (book ids) by the predicted ratings of the user.
+     * Returns the boosted score of each hit, where
+     * score[i] = baseScores[i] + BOOST_WEIGHT * model.score(user, hit i),
+     * so each boost is a single dot product of the user and book factors.
+     */
+    public double[] score(int[] bookIds, double[] baseScores, int user_id) {
+        double[] scores = new double[bookIds.length];
+        model.scoreMany(user_id, bookIds, scores);
+        Kernels.scaleAdd(baseScores, BOOST_WEIGHT, scores, scores, bookIds.length);
+        return scores;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Personalized boosting of search results from the books a user has rated and their most similar books
+ */
+
+package searcher;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import similarity.BookNeighborIndex;
+import similarity.IdIndex;
+import similarity.RatingMatrix;
+
+public class ItemBoostScorer {
+
+    /* Score added for a predicted rating 1 above neutral (3). */
+    final double BOOST_WEIGHT = 5.0;
+
+    private final BookNeighborIndex bookNeighbors;
+
+    public ItemBoostScorer(BookNeighborIndex bookNeighbors) {
+        this.bookNeighbors = bookNeighbors;
+    }
+
+    /**
+     * Boost the base scores of the hits (book ids) by the ratings of the user.
+     * Returns the boosted score of each hit, where
+     * score[i] = baseScores[i] + BOOST_WEIGHT * (sum of sim(j, i) * (rating of j - 3)) / (sum of |sim(j, i)|)
+     * over the rated books j that have hit i among their precomputed neighbors.
+     *
+     * Only the neighbor lists of the rated books are read, so cost is proportional
+     * to the number of ratings of the user, independent of the number of other users.
+     */
+    public double[] score(int[] bookIds, double[] baseScores, Map<Integer, Integer> ratings) {
+        /* Map book ids of the hits to accumulator slots. */
+        IdIndex slots = new IdIndex(bookIds.length);
+        int[] slotOfHit = new int[bookIds.length];
+        for (int i = 0; i < bookIds.length; ++i) {
+            slotOfHit[i] = slots.getOrAdd(bookIds[i]);
+        }
+
+        double[] weighted = new double[slots.size()];
+        double[] weights = new double[slots.size()];
+        for (Map.Entry<Integer, Integer> entry : ratings.entrySet()) {
+            double deviation = entry.getValue() - 3;
+            bookNeighbors.forEachNeighbor(entry.getKey(), (book_id, sim) -> {
+                int slot = slots.get(book_id);
+                if (slot >= 0) {
+                    weighted[slot] += sim * deviation;
+                    weights[slot] += Math.abs(sim);
+                }
+            });
+        }
+
+        double[] scores = new double[bookIds.length];
+        for (int i = 0; i < bookIds.length; ++i) {
+            int slot = slotOfHit[i];
+            scores[i] = baseScores[i] + (weights[slot] == 0 ? 0.0 : BOOST_WEIGHT * weighted[slot] / weights[slot]);
+        }
+        return scores;
+    }
+
+
+    /**
+     * Test the boosts against the formula above, computed hit by hit.
+     */
+    public static void main(String[] args) throws IOException {
+        var matrix = new RatingMatrix();
+        var random = new java.util.Random(42);
+        for (int user_id = 0; user_id < 150; ++user_id) {
+            for (int k = 0; k < 15; ++k) {
+                matrix.put(user_id, random.nextInt(60), 1 + random.nextInt(5));
+            }
+        }
+        Path file = Files.createTempFile("book_neighbors", ".graph");
+        try {
+            BookNeighborIndex.build(matrix, 10, 2, file, null);
+            var bookNeighbors = BookNeighborIndex.open(file, null);
+            var scorer = new ItemBoostScorer(bookNeighbors);
+            Map<Integer, Integer> ratings = Map.of(3, 5, 17, 1, 42, 4);
+
+            /* Every book is a hit, the first one twice. */
+            int[] bookIds = new int[61];
+            double[] baseScores = new double[bookIds.length];
+            for (int i = 1; i < bookIds.length; ++i) {
+                bookIds[i] = i - 1;
+                baseScores[i] = random.nextDouble() * 10;
+            }
+            baseScores[0] = baseScores[1];
+            double[] scores = scorer.score(bookIds, baseScores, ratings);
+
+            boolean equal = true;
+            int boosted = 0;
+            for (int i = 0; i < bookIds.length; ++i) {
+                int hit_id = bookIds[i];
+                double[] sums = new double[2];
+                for (var entry : ratings.entrySet()) {
+                    bookNeighbors.forEachNeighbor(entry.getKey(), (book_id, sim) -> {
+                        if (book_id == hit_id) {
+                            sums[0] += sim * (entry.getValue() - 3);
+                            sums[1] += Math.abs(sim);
+                        }
+                    });
+                }
+                double expected = baseScores[i] + (sums[1] == 0 ? 0.0 : scorer.BOOST_WEIGHT * sums[0] / sums[1]);
+                equal &= Math.abs(scores[i] - expected) < 1e-9;
+                boosted += scores[i] != baseScores[i] ? 1 : 0;
+            }
+            System.out.println(equal);
+            System.out.println(boosted > 0 && scores[0] == scores[1]);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
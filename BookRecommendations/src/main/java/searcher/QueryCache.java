@@ -0,0 +1,110 @@
+/**
+ * LRU cache with a time to live, counting hits, evictions and time saved
+ */
+
+package searcher;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+public class QueryCache<K, V> {
+
+    private record Entry<V>(V value, long createdNanos, long costNanos) {
+    }
+
+    /**
+     * Counters of a cache. savedSeconds is the time it took to compute the
+     * values that were served from the cache instead of being computed again.
+     */
+    public record Stats(long hits, long misses, long evictions, long expirations, long invalidations, int size, double savedSeconds) {
+        public double hitRate() {
+            return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d entries, hit rate %.1f%% (%d hits, %d misses), %d evicted, %d expired, %d invalidated, %.3f s saved",
+                    size, 100 * hitRate(), hits, misses, evictions, expirations, invalidations, savedSeconds);
+        }
+    }
+
+    private final int capacity;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    private long invalidations;
+    private long savedNanos;
+
+    /**
+     * Create cache of at most capacity values, each kept for at most ttlMillis.
+     */
+    public QueryCache(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+    }
+
+    /**
+     * Get value of key, or null if it is not cached (or has expired).
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.createdNanos() > ttlNanos) {
+            entries.remove(key);
+            ++expirations;
+            entry = null;
+        }
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        savedNanos += entry.costNanos();
+        return entry.value();
+    }
+
+    /**
+     * Cache value of key, which took costNanos to compute. Evicts the least
+     * recently used value if the cache is full.
+     */
+    public synchronized void put(K key, V value, long costNanos) {
+        entries.put(key, new Entry<>(value, System.nanoTime(), costNanos));
+        while (entries.size() > capacity) {
+            Iterator<Map.Entry<K, Entry<V>>> eldest = entries.entrySet().iterator();
+            eldest.next();
+            eldest.remove();
+            ++evictions;
+        }
+    }
+
+    /**
+     * Remove the value of key, if cached.
+     */
+    public synchronized void invalidate(K key) {
+        if (entries.remove(key) != null) {
+            ++invalidations;
+        }
+    }
+
+    /**
+     * Remove the values of all keys matching predicate.
+     */
+    public synchronized void invalidateIf(Predicate<K> predicate) {
+        Iterator<K> keys = entries.keySet().iterator();
+        while (keys.hasNext()) {
+            if (predicate.test(keys.next())) {
+                keys.remove();
+                ++invalidations;
+            }
+        }
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, expirations, invalidations, entries.size(), savedNanos / 1e9);
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Page of ranked search results, with the state needed to load the next page
+ */
+
+package searcher;
+
+import java.util.List;
+
+import components.Book;
+import similarity.NeighborSelector;
+
+public class ResultPage {
+
+    private final List<Book> books;
+    private final long totalHits;
+    private final boolean totalHitsExact;
+    private final Facets facets;
+    private final int offset;
+
+    /* Query the results were ranked for. */
+    final BookSearcher.SearchContext context;
+
+    /* Candidates retrieved but not shown yet (in retrieval order) and their ranking scores. */
+    final List<Book> rest;
+    final double[] restScores;
+
+    /* Next window of hits to retrieve, or null if all hits have been retrieved. */
+    final BookSearcher.Window next;
+
+    /* Similar users selected for the first window of a user query, which boost the
+       next windows as well (see BookSearcher.rankHits). Null for other queries. */
+    final NeighborSelector.Neighbors neighbors;
+
+    ResultPage(List<Book> books, long totalHits, boolean totalHitsExact, Facets facets, int offset, BookSearcher.SearchContext context, List<Book> rest, double[] restScores, BookSearcher.Window next, NeighborSelector.Neighbors neighbors) {
+        this.books = books;
+        this.totalHits = totalHits;
+        this.totalHitsExact = totalHitsExact;
+        this.facets = facets;
+        this.offset = offset;
+        this.context = context;
+        this.rest = rest;
+        this.restScores = restScores;
+        this.next = next;
+        this.neighbors = neighbors;
+    }
+
+    /**
+     * Books of this page, best first.
+     */
+    public List<Book> getBooks() {
+        return books;
+    }
+
+    /**
+     * Number of books matching the query (not counting read books, if hidden).
+     */
+    public long getTotalHits() {
+        return totalHits;
+    }
+
+    /**
+     * True if getTotalHits is the number of matching books, false if it is a lower
+     * bound (popular queries stop counting).
+     */
+    public boolean isTotalHitsExact() {
+        return totalHitsExact;
+    }
+
+    /**
+     * Facet counts of the books matching the query (the same for all pages),
+     * with no counts if they are not aggregated (for popular queries).
+     */
+    public Facets getFacets() {
+        return facets;
+    }
+
+    /**
+     * Number of books on the pages before this one.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * True if more books can be loaded after this page.
+     */
+    public boolean hasMore() {
+        return !rest.isEmpty() || next != null;
+    }
+}
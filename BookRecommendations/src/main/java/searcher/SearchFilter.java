@@ -0,0 +1,52 @@
+/**
+ * Structured filters to narrow a search by genre, author, series, rating and number of ratings
+ */
+
+package searcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Filters of a search. Books must have all of genres, and the author and series
+ * if not null (matched exactly), a rating between minRating and maxRating and at
+ * least minNumRatings ratings, if not null. The filters are run in filter context,
+ * so they are not scored and Elasticsearch caches them across queries.
+ */
+public record SearchFilter(List<String> genres, String author, String series, Double minRating, Double maxRating, Integer minNumRatings) {
+
+    public static final SearchFilter NONE = new SearchFilter(List.of(), null, null, null, null, null);
+
+    public SearchFilter {
+        genres = List.copyOf(genres);
+    }
+
+    public boolean isEmpty() {
+        return equals(NONE);
+    }
+
+    public SearchFilter withGenre(String genre) {
+        if (genres.contains(genre)) {
+            return this;
+        }
+        List<String> moreGenres = new ArrayList<>(genres);
+        moreGenres.add(genre);
+        return new SearchFilter(moreGenres, author, series, minRating, maxRating, minNumRatings);
+    }
+
+    public SearchFilter withAuthor(String author) {
+        return new SearchFilter(genres, author, series, minRating, maxRating, minNumRatings);
+    }
+
+    public SearchFilter withSeries(String series) {
+        return new SearchFilter(genres, author, series, minRating, maxRating, minNumRatings);
+    }
+
+    public SearchFilter withRating(Double minRating, Double maxRating) {
+        return new SearchFilter(genres, author, series, minRating, maxRating, minNumRatings);
+    }
+
+    public SearchFilter withMinNumRatings(Integer minNumRatings) {
+        return new SearchFilter(genres, author, series, minRating, maxRating, minNumRatings);
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Personalized boosting of search results from the ratings of similar users
+ */
+
+package searcher;
+
+import similarity.IdIndex;
+import similarity.RatingMatrix;
+
+public class UserBoostScorer {
+
+    private final RatingMatrix ratingMatrix;
+
+    public UserBoostScorer(RatingMatrix ratingMatrix) {
+        this.ratingMatrix = ratingMatrix;
+    }
+
+    /**
+     * Boost the base scores of the hits (book ids) by the ratings of similar users.
+     * Returns the boosted score of each hit, where
+     * score[i] = baseScores[i] + sum over similar users j of boostFunction(simScores[j], rating of j for hit i).
+     *
+     * Each similar user's rating row is iterated once and contributions are accumulated
+     * by hit position, so cost is proportional to the number of ratings of similar users
+     * rather than hits times similar users.
+     */
+    public double[] score(int[] bookIds, double[] baseScores, int[] similarUserIds, double[] simScores) {
+        /* Map dense book indices of the hits to accumulator slots. */
+        IdIndex slots = new IdIndex(bookIds.length);
+        int[] slotOfHit = new int[bookIds.length];
+        for (int i = 0; i < bookIds.length; ++i) {
+            int book = ratingMatrix.getBookIndex(bookIds[i]);
+            slotOfHit[i] = book < 0 ? -1 : slots.getOrAdd(book);
+        }
+
+        double[] boosts = new double[slots.size()];
+        for (int j = 0; j < similarUserIds.length; ++j) {
+            int similarUser = ratingMatrix.getUserIndex(similarUserIds[j]);
+            if (similarUser < 0 || simScores[j] == 0) {
+                continue;
+            }
+            int size = ratingMatrix.rowSize(similarUser);
+            for (int k = 0; k < size; ++k) {
+                int slot = slots.get(ratingMatrix.rowBook(similarUser, k));
+                if (slot >= 0) {
+                    boosts[slot] += boostFunction(simScores[j], ratingMatrix.rowRating(similarUser, k));
+                }
+            }
+        }
+
+        double[] scores = new double[bookIds.length];
+        for (int i = 0; i < bookIds.length; ++i) {
+            scores[i] = baseScores[i] + (slotOfHit[i] < 0 ? 0.0 : boosts[slotOfHit[i]]);
+        }
+        return scores;
+    }
+
+    /**
+     * Boosting function for given user similarity score and book rating
+     */
+    static double boostFunction(double simScore, double rating) {
+        if (rating == 0) return 0.0;
+        return 2.5e4*simScore*Math.pow(rating-3, 2)*Math.signum(rating-3);
+    }
+}
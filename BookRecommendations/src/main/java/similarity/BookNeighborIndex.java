@@ -0,0 +1,235 @@
+package similarity;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Precomputed most similar books of every book, for item-based
+ * collaborative filtering.
+ *
+ * Book-book similarities are the cosine between the rating columns of two
+ * books, with ratings centered at 3 so that disagreement gives negative
+ * similarity. Since the set of books changes far slower than the ratings of
+ * any one user, the top N neighbors are computed offline (see main) and
+ * stored in a memory-mapped file (see NeighborLists), stamped with the
+ * ratings they were computed from.
+ */
+public class BookNeighborIndex {
+    private static final int MAGIC = 0x4e4e4b42; // "BKNN"
+
+    private final NeighborLists lists;
+
+    /**
+     * Most similar books of a book, by decreasing similarity.
+     */
+    private record SimilarBooks(int[] bookIds, double[] simScores) {
+    }
+
+    private BookNeighborIndex(NeighborLists lists) {
+        this.lists = lists;
+    }
+
+    /**
+     * Open the index stored in file. If source is not null, the index must
+     * have been built from the current version of that ratings file.
+     * Throws IOException if the index is missing, invalid or stale.
+     */
+    public static BookNeighborIndex open(Path file, Path source) throws IOException {
+        return new BookNeighborIndex(NeighborLists.open(file, MAGIC, source));
+    }
+
+    /**
+     * Call consumer with (book id, similarity) of each precomputed neighbor
+     * of book, by decreasing similarity. No calls if book has no neighbors.
+     */
+    public void forEachNeighbor(int book_id, RatingMatrix.RatingConsumer consumer) {
+        int book = lists.indexOf(book_id);
+        if (book < 0) {
+            return;
+        }
+        int count = lists.count(book);
+        for (int i = 0; i < count; ++i) {
+            consumer.accept(lists.neighbor(book, i), lists.sim(book, i));
+        }
+    }
+
+    /**
+     * Build the index with the n most similar books of every book in ratingMatrix,
+     * and write it to file, stamped with source (the ratings file ratingMatrix was
+     * loaded from, if not null). Only books rated by at least minCoRaters of the same
+     * users and with positive similarity are kept as neighbors.
+     */
+    public static void build(RatingMatrix ratingMatrix, int n, int minCoRaters, Path file, Path source) throws IOException {
+        int numBooks = ratingMatrix.numBooks();
+        double[] lengths = new double[numBooks];
+        for (int book = 0; book < numBooks; ++book) {
+            int columnSize = ratingMatrix.columnSize(book);
+            for (int c = 0; c < columnSize; ++c) {
+                double rating = ratingMatrix.columnRating(book, c) - 3;
+                lengths[book] += rating * rating;
+            }
+            lengths[book] = Math.sqrt(lengths[book]);
+        }
+
+        int[] bookIds = new int[numBooks];
+        int[][] neighborIds = new int[numBooks][];
+        double[][] simScores = new double[numBooks][];
+        /* Books are computed in parallel, each with a dense scratch accumulator not in use
+           by another book. There are at most as many as threads, dropped after the build. */
+        var scratches = new ConcurrentLinkedQueue<Scratch>();
+        IntStream.range(0, numBooks).parallel().forEach(book -> {
+            Scratch scratch = scratches.poll();
+            if (scratch == null) {
+                scratch = new Scratch(numBooks);
+            }
+            bookIds[book] = ratingMatrix.getBookId(book);
+            var similarBooks = scratch.neighbors(ratingMatrix, lengths, book, n, minCoRaters);
+            neighborIds[book] = similarBooks.bookIds();
+            simScores[book] = similarBooks.simScores();
+            scratches.offer(scratch);
+        });
+        NeighborLists.write(file, MAGIC, n, bookIds, neighborIds, simScores, source);
+    }
+
+    /**
+     * Dot products and co-rater counts of one book with all other books.
+     */
+    private static class Scratch {
+        private final double[] dots;
+        private final int[] coRaters;
+        private final int[] touched;
+
+        Scratch(int numBooks) {
+            dots = new double[numBooks];
+            coRaters = new int[numBooks];
+            touched = new int[numBooks];
+        }
+
+        /**
+         * Top n neighbors of book (index).
+         */
+        SimilarBooks neighbors(RatingMatrix ratingMatrix, double[] lengths, int book, int n, int minCoRaters) {
+            /* Every user of book adds to the dot product with each other book it has rated. */
+            int numTouched = 0;
+            int columnSize = ratingMatrix.columnSize(book);
+            for (int c = 0; c < columnSize; ++c) {
+                int user = ratingMatrix.columnUser(book, c);
+                double rating = ratingMatrix.columnRating(book, c) - 3;
+                int size = ratingMatrix.rowSize(user);
+                for (int k = 0; k < size; ++k) {
+                    int other = ratingMatrix.rowBook(user, k);
+                    if (other == book) {
+                        continue;
+                    }
+                    if (coRaters[other]++ == 0) {
+                        touched[numTouched++] = other;
+                    }
+                    dots[other] += rating * (ratingMatrix.rowRating(user, k) - 3);
+                }
+            }
+
+            var heap = new NeighborSelector.TopK(Math.min(n, numTouched));
+            for (int i = 0; i < numTouched; ++i) {
+                int other = touched[i];
+                if (coRaters[other] >= minCoRaters && dots[other] > 0) {
+                    heap.offer(ratingMatrix.getBookId(other), dots[other] / (lengths[book] * lengths[other]));
+                }
+                dots[other] = 0d;
+                coRaters[other] = 0;
+            }
+            heap.sort();
+            return new SimilarBooks(heap.ids(), heap.sims());
+        }
+    }
+
+
+    /**
+     * Build the book neighbor index (./book_neighbors.graph, or the file given as
+     * first argument) from ratings (./ratings.json, or the second argument), with N
+     * neighbors per book (50, or the third argument).
+     * With --check as only argument, test the index on random ratings instead.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 1 && args[0].equals("--check")) {
+            check();
+            return;
+        }
+        Path file = Path.of(args.length > 0 ? args[0] : "./book_neighbors.graph");
+        Path source = Path.of(args.length > 1 ? args[1] : "./ratings.json");
+        int n = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        long startTime = System.currentTimeMillis();
+        var ratingMatrix = source.toString().endsWith(".ndjson")
+                ? RatingsLoader.loadNdjson(source, Runtime.getRuntime().availableProcessors())
+                : RatingsLoader.loadJson(source);
+        build(ratingMatrix, n, 2, file, source);
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        System.out.printf("Wrote %d nearest neighbors of %d books to %s in %.3f seconds%n",
+                n, ratingMatrix.numBooks(), file, elapsedTime / 1000.0);
+    }
+
+    /**
+     * Test that the index read back from its file holds the top N of every book
+     * by item-item cosine, computed pair by pair.
+     */
+    private static void check() throws IOException {
+        var matrix = new RatingMatrix();
+        var random = new java.util.Random(42);
+        for (int user_id = 0; user_id < 150; ++user_id) {
+            for (int k = 0; k < 15; ++k) {
+                matrix.put(user_id, 2 * random.nextInt(60), 1 + random.nextInt(5));
+            }
+        }
+        int n = 5;
+        int minCoRaters = 2;
+        Path file = Files.createTempFile("book_neighbors", ".graph");
+        try {
+            build(matrix, n, minCoRaters, file, null);
+            var index = open(file, null);
+            boolean equal = true;
+            for (int book_id : matrix.getBookIds()) {
+                /* Similarities with all other books kept, by decreasing similarity. */
+                var exact = new java.util.ArrayList<double[]>();
+                for (int other_id : matrix.getBookIds()) {
+                    double dot = 0d;
+                    int coRaters = 0;
+                    for (int user_id : matrix.getUsersFromBook(book_id)) {
+                        if (other_id != book_id && matrix.getUsersFromBook(other_id).contains(user_id)) {
+                            dot += (matrix.getRating(user_id, book_id) - 3) * (matrix.getRating(user_id, other_id) - 3);
+                            ++coRaters;
+                        }
+                    }
+                    if (coRaters >= minCoRaters && dot > 0) {
+                        exact.add(new double[] { other_id, dot / (length(matrix, book_id) * length(matrix, other_id)) });
+                    }
+                }
+                exact.sort((a, b) -> Double.compare(b[1], a[1]));
+
+                var listed = new java.util.ArrayList<double[]>();
+                index.forEachNeighbor(book_id, (other_id, sim) -> listed.add(new double[] { other_id, sim }));
+                equal &= listed.size() == Math.min(n, exact.size());
+                /* Ties may be listed in either order, their similarities may not. Similarities are stored as floats. */
+                for (int i = 0; equal && i < listed.size(); ++i) {
+                    double other_id = listed.get(i)[0];
+                    double sim = listed.get(i)[1];
+                    equal = sim == (float) exact.get(i)[1]
+                            && exact.stream().anyMatch(e -> e[0] == other_id && (float) e[1] == sim);
+                }
+            }
+            System.out.println(equal);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static double length(RatingMatrix matrix, int book_id) {
+        double squares = 0d;
+        for (int user_id : matrix.getUsersFromBook(book_id)) {
+            double rating = matrix.getRating(user_id, book_id) - 3;
+            squares += rating * rating;
+        }
+        return Math.sqrt(squares);
+    }
+}
@@ -0,0 +1,282 @@
+package similarity;
+
+import java.util.Arrays;
+
+/**
+ * Immutable compressed lists of (id, rating) pairs with ascending id's,
+ * such as the rows (book indices) or columns (user indices) of a RatingMatrix.
+ *
+ * Each list is split into blocks of BLOCK_SIZE entries. A skip table holds
+ * the first id of every block and the offset of the rest of the block, which
+ * is stored as varint encoded deltas (mostly 1-2 bytes per id). Ratings must
+ * be integers 0-7 and are bit-packed 3 bits each, 21 to a long.
+ *
+ * Entries can be read by position (decoding blocks through a small per-thread
+ * cache) or sequentially with a Cursor, which uses the skip table to jump to
+ * the block containing an id without decoding the blocks before it.
+ */
+final class CompressedPostings {
+    static final int BLOCK_SIZE = 64;
+    private static final int RATING_BITS = 3;
+    private static final int RATINGS_PER_WORD = 21;
+
+    /**
+     * Lists to compress, by list index.
+     */
+    interface Source {
+        int size(int list);
+
+        int id(int list, int k);
+
+        float rating(int list, int k);
+    }
+
+    /* Per list: first block and first entry (global), with sentinels. */
+    private final int[] listBlock;
+    private final int[] listEntry;
+    /* Per block: first id, first entry and byte offset of the deltas, with sentinels. */
+    private final int[] blockFirstId;
+    private final int[] blockEntry;
+    private final int[] blockOffset;
+    private final byte[] deltas;
+    private final long[] ratings;
+
+    private final ThreadLocal<BlockCache> cache = ThreadLocal.withInitial(BlockCache::new);
+
+    private CompressedPostings(int[] listBlock, int[] listEntry, int[] blockFirstId, int[] blockEntry, int[] blockOffset, byte[] deltas, long[] ratings) {
+        this.listBlock = listBlock;
+        this.listEntry = listEntry;
+        this.blockFirstId = blockFirstId;
+        this.blockEntry = blockEntry;
+        this.blockOffset = blockOffset;
+        this.deltas = deltas;
+        this.ratings = ratings;
+    }
+
+    /**
+     * True if rating can be stored, i.e. is an integer 0-7.
+     */
+    static boolean canPack(float rating) {
+        return rating >= 0 && rating < (1 << RATING_BITS) && rating == (int) rating;
+    }
+
+    /**
+     * Compress lists 0..numLists-1 of source. Lists not included are stored empty.
+     * All ratings of included lists must satisfy canPack.
+     */
+    static CompressedPostings build(int numLists, boolean[] include, Source source) {
+        int[] listBlock = new int[numLists + 1];
+        int[] listEntry = new int[numLists + 1];
+        for (int list = 0; list < numLists; ++list) {
+            int size = include[list] ? source.size(list) : 0;
+            listBlock[list + 1] = listBlock[list] + (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            listEntry[list + 1] = listEntry[list] + size;
+        }
+        int numBlocks = listBlock[numLists];
+        int numEntries = listEntry[numLists];
+        int[] blockFirstId = new int[numBlocks + 1];
+        int[] blockEntry = new int[numBlocks + 1];
+        int[] blockOffset = new int[numBlocks + 1];
+        long[] ratings = new long[(numEntries + RATINGS_PER_WORD - 1) / RATINGS_PER_WORD];
+        byte[] deltas = new byte[Math.max(16, numEntries)];
+        int pos = 0;
+
+        for (int list = 0; list < numLists; ++list) {
+            int size = listEntry[list + 1] - listEntry[list];
+            int block = listBlock[list];
+            int previous = 0;
+            for (int k = 0; k < size; ++k) {
+                int id = source.id(list, k);
+                int entry = listEntry[list] + k;
+                if (k % BLOCK_SIZE == 0) {
+                    blockFirstId[block] = id;
+                    blockEntry[block] = entry;
+                    blockOffset[block++] = pos;
+                } else {
+                    /* At most 5 bytes per varint. */
+                    if (pos + 5 > deltas.length) {
+                        deltas = Arrays.copyOf(deltas, Math.max(pos + 5, deltas.length + (deltas.length >> 1)));
+                    }
+                    int delta = id - previous;
+                    while ((delta & ~0x7f) != 0) {
+                        deltas[pos++] = (byte) ((delta & 0x7f) | 0x80);
+                        delta >>>= 7;
+                    }
+                    deltas[pos++] = (byte) delta;
+                }
+                previous = id;
+                ratings[entry / RATINGS_PER_WORD] |= (long) source.rating(list, k) << (RATING_BITS * (entry % RATINGS_PER_WORD));
+            }
+        }
+        blockEntry[numBlocks] = numEntries;
+        blockOffset[numBlocks] = pos;
+        return new CompressedPostings(listBlock, listEntry, blockFirstId, blockEntry, blockOffset, Arrays.copyOf(deltas, pos), ratings);
+    }
+
+    int size(int list) {
+        return listEntry[list + 1] - listEntry[list];
+    }
+
+    /**
+     * Id of entry k of list.
+     */
+    int id(int list, int k) {
+        int block = listBlock[list] + k / BLOCK_SIZE;
+        int within = k % BLOCK_SIZE;
+        if (within == 0) {
+            return blockFirstId[block];
+        }
+        return cache.get().ids(block)[within];
+    }
+
+    /**
+     * Rating of entry k of list.
+     */
+    float rating(int list, int k) {
+        return ratingAt(listEntry[list] + k);
+    }
+
+    private float ratingAt(int entry) {
+        long word = ratings[entry / RATINGS_PER_WORD];
+        return (int) (word >>> (RATING_BITS * (entry % RATINGS_PER_WORD))) & ((1 << RATING_BITS) - 1);
+    }
+
+    /**
+     * Approximate heap size of the compressed lists.
+     */
+    long sizeInBytes() {
+        return 4L * (listBlock.length + listEntry.length)
+                + 4L * (blockFirstId.length + blockEntry.length + blockOffset.length)
+                + deltas.length + 8L * ratings.length;
+    }
+
+    /**
+     * The two most recently decoded blocks of the current thread, so that reading
+     * a list (or merging two lists) by position decodes each block once.
+     */
+    private class BlockCache {
+        private final int[][] ids = new int[2][BLOCK_SIZE];
+        private final int[] blocks = {-1, -1};
+        private int older = 0;
+
+        int[] ids(int block) {
+            if (blocks[0] == block) {
+                older = 1;
+                return ids[0];
+            }
+            if (blocks[1] == block) {
+                older = 0;
+                return ids[1];
+            }
+            int slot = older;
+            older = 1 - slot;
+            blocks[slot] = block;
+            decode(block, ids[slot]);
+            return ids[slot];
+        }
+    }
+
+    /**
+     * Decode the id's of block into out.
+     */
+    private void decode(int block, int[] out) {
+        int count = blockEntry[block + 1] - blockEntry[block];
+        int pos = blockOffset[block];
+        int id = blockFirstId[block];
+        out[0] = id;
+        for (int i = 1; i < count; ++i) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = deltas[pos++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += delta;
+            out[i] = id;
+        }
+    }
+
+    /**
+     * Sequential reader of one list, with skipping by the skip table.
+     */
+    final class Cursor {
+        private int block;
+        private int blockEnd;
+        private int entry;
+        private int entryEnd;
+        private int pos;
+        private int id;
+
+        /**
+         * Position cursor at the first entry of list.
+         */
+        void reset(int list) {
+            block = listBlock[list];
+            blockEnd = listBlock[list + 1];
+            entry = listEntry[list];
+            entryEnd = listEntry[list + 1];
+            if (entry < entryEnd) {
+                id = blockFirstId[block];
+                pos = blockOffset[block];
+            }
+        }
+
+        boolean valid() {
+            return entry < entryEnd;
+        }
+
+        int id() {
+            return id;
+        }
+
+        float rating() {
+            return ratingAt(entry);
+        }
+
+        void next() {
+            if (++entry >= entryEnd) {
+                return;
+            }
+            if (entry == blockEntry[block + 1]) {
+                ++block;
+                id = blockFirstId[block];
+                pos = blockOffset[block];
+                return;
+            }
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = deltas[pos++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += delta;
+        }
+
+        /**
+         * Move to the first entry with id at least target (or past the end).
+         * Blocks starting at or before target are skipped without decoding.
+         */
+        void advance(int target) {
+            if (!valid() || id >= target) {
+                return;
+            }
+            int skip = block;
+            while (skip + 1 < blockEnd && blockFirstId[skip + 1] <= target) {
+                ++skip;
+            }
+            if (skip != block) {
+                block = skip;
+                entry = blockEntry[skip];
+                id = blockFirstId[skip];
+                pos = blockOffset[skip];
+            }
+            while (valid() && id < target) {
+                next();
+            }
+        }
+    }
+}
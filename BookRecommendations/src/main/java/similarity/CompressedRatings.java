@@ -0,0 +1,52 @@
+package similarity;
+
+/**
+ * Rows and columns of a RatingMatrix as CompressedPostings, see RatingMatrix.compact.
+ */
+final class CompressedRatings implements RatingStore {
+    private final CompressedPostings rows;
+    private final CompressedPostings columns;
+
+    CompressedRatings(CompressedPostings rows, CompressedPostings columns) {
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    CompressedPostings rows() {
+        return rows;
+    }
+
+    long sizeInBytes() {
+        return rows.sizeInBytes() + columns.sizeInBytes();
+    }
+
+    @Override
+    public int rowSize(int user) {
+        return rows.size(user);
+    }
+
+    @Override
+    public int rowBook(int user, int k) {
+        return rows.id(user, k);
+    }
+
+    @Override
+    public float rowRating(int user, int k) {
+        return rows.rating(user, k);
+    }
+
+    @Override
+    public int columnSize(int book) {
+        return columns.size(book);
+    }
+
+    @Override
+    public int columnUser(int book, int k) {
+        return columns.id(book, k);
+    }
+
+    @Override
+    public float columnRating(int book, int k) {
+        return columns.rating(book, k);
+    }
+}
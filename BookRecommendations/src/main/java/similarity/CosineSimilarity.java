@@ -1,5 +1,7 @@
 package similarity;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.DoubleFunction;
 
 /**
@@ -8,46 +10,71 @@ import java.util.function.DoubleFunction;
  * 
  * Compute cosine similarities between users from 
  * a RatingMatrix. 
+ * 
+ * Lengths of users under the built-in metrics are cached, and
+ * invalidated when the user's row changes through RatingMatrix.put.
  */
 public class CosineSimilarity implements Similarity {
     private RatingMatrix ratingMarix;
 
+    /* Cached lengths per metric and dense user index. NaN if not computed. */
+    private final double[][] lengths = new double[Metric.values().length][0];
+
+    /* Cursors for dot, reused by one caller at a time. Callers finding them
+       taken (e.g. while NeighborGraph.build runs in parallel) use their own. */
+    private final AtomicReference<RatingMatrix.RowCursor[]> spareCursors = new AtomicReference<>();
+
+    /**
+     * Metrics with primitive length kernels.
+     */
+    public enum Metric {
+        /* Sum of squared ratings. */
+        EUCLIDEAN,
+        /* Sum of absolute ratings. */
+        MANHATTAN
+    }
+
     public CosineSimilarity(RatingMatrix ratingMatrix) {
         this.ratingMarix = ratingMatrix;
+        ratingMatrix.addListener((user_id, book_id, rating) -> invalidate(user_id));
     }
 
     /**
      * Dot product between user A and B. 
      */
     private double dot(int user_id_A, int user_id_B) {
-        /* Iterate over both users.*/
-        var iterA = ratingMarix.getEntrySetFromUser(user_id_A).iterator();
-        var iterB = ratingMarix.getEntrySetFromUser(user_id_B).iterator();
+        int userA = ratingMarix.getUserIndex(user_id_A);
+        int userB = ratingMarix.getUserIndex(user_id_B);
+        if (userA < 0 || userB < 0) {
+            return 0d;
+        }
 
+        /* Rows are sorted by book index, merge by skipping the row behind to the
+         * book of the other (skip pointers on compressed rows, galloping otherwise). */
+        RatingMatrix.RowCursor[] cursors = spareCursors.getAndSet(null);
+        if (cursors == null) {
+            cursors = new RatingMatrix.RowCursor[] { ratingMarix.rowCursor(), ratingMarix.rowCursor() };
+        }
+        var a = cursors[0];
+        var b = cursors[1];
+        a.reset(userA);
+        b.reset(userB);
         double dotProduct = 0d;
-        var entryA = iterA.next();
-        var entryB = iterB.next();
-        /* Union search, linear scan. */
-        while (true) {
-            if (entryA.getKey().equals(entryB.getKey())) {
-                dotProduct += entryA.getValue() * entryB.getValue();
-            }
-            if (!iterA.hasNext() && !iterB.hasNext()) {
-                return dotProduct;
-            }
-            if (!iterA.hasNext()) {
-                entryB = iterB.next();
-            } else if (!iterB.hasNext()) {
-                entryA = iterA.next();
-            } else if (entryA.getKey() < entryB.getKey()) {
-                entryA = iterA.next();
-            } else if (entryA.getKey() > entryB.getKey()) {
-                entryB = iterB.next();
+        while (a.valid() && b.valid()) {
+            int bookA = a.book();
+            int bookB = b.book();
+            if (bookA < bookB) {
+                a.advance(bookB);
+            } else if (bookA > bookB) {
+                b.advance(bookA);
             } else {
-                entryA = iterA.next();
-                entryB = iterB.next();
+                dotProduct += (double) a.rating() * b.rating();
+                a.next();
+                b.next();
             }
-        }   
+        }
+        spareCursors.set(cursors);
+        return dotProduct;
     }
 
     /**
@@ -62,18 +89,79 @@ public class CosineSimilarity implements Similarity {
         return len;
     }
 
+    /**
+     * Get length of vector with specified metric, cached per user.
+     */
+    public double length(int user_id, Metric metric) {
+        int user = ratingMarix.getUserIndex(user_id);
+        if (user < 0) {
+            return 0d;
+        }
+        double[] cache = lengths[metric.ordinal()];
+        if (user >= cache.length) {
+            int old = cache.length;
+            cache = Arrays.copyOf(cache, Math.max(user + 1, ratingMarix.numUsers()));
+            Arrays.fill(cache, old, cache.length, Double.NaN);
+            lengths[metric.ordinal()] = cache;
+        }
+        double len = cache[user];
+        if (Double.isNaN(len)) {
+            len = computeLength(user, metric);
+            cache[user] = len;
+        }
+        return len;
+    }
 
     /**
-     * Get cosine similarity between user A and B with specified metric.
-     * Return positive/negative infinity if metric for user A or B is 0.
+     * Length kernels over a row, without boxing.
      */
-    public double sim(int user_id_A, int user_id_B, DoubleFunction<Double> metric) {
-        double dotProduct = dot(user_id_A, user_id_B);
+    private double computeLength(int user, Metric metric) {
+        int size = ratingMarix.rowSize(user);
+        float[] ratings = ratingMarix.rowRatingsArray(user);
+        if (ratings != null) {
+            return switch (metric) {
+                case EUCLIDEAN -> Kernels.sumOfSquares(ratings, 0, size);
+                case MANHATTAN -> Kernels.sumOfAbs(ratings, 0, size);
+            };
+        }
+        /* Row still in the snapshot. */
+        double len = 0d;
+        switch (metric) {
+            case EUCLIDEAN -> {
+                for (int k = 0; k < size; ++k) {
+                    double rating = ratingMarix.rowRating(user, k);
+                    len += rating * rating;
+                }
+            }
+            case MANHATTAN -> {
+                for (int k = 0; k < size; ++k) {
+                    len += Math.abs(ratingMarix.rowRating(user, k));
+                }
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Drop cached lengths of user.
+     */
+    private void invalidate(int user_id) {
+        int user = ratingMarix.getUserIndex(user_id);
+        for (double[] cache : lengths) {
+            if (user < cache.length) {
+                cache[user] = Double.NaN;
+            }
+        }
+    }
+
+    /**
+     * Combine dot product and lengths to a cosine similarity.
+     * Return positive/negative infinity if length of user A or B is 0.
+     */
+    static double cosine(double dotProduct, double lenA, double lenB) {
         if (dotProduct == 0d) {
             return 0d;
         }
-        double lenA = length(user_id_A, metric);
-        double lenB = length(user_id_B, metric);
         if (lenA == 0d && lenB != 0d) {
             return Math.signum(dotProduct) * Math.signum(lenB) * Double.POSITIVE_INFINITY;
         }
@@ -84,20 +172,58 @@ public class CosineSimilarity implements Similarity {
             return Math.signum(dotProduct) * Double.POSITIVE_INFINITY;
         }
         return dotProduct / (lenA * lenB);
+    }
+
+    /**
+     * Combine dot product and length of user B to an assymetric cosine similarity.
+     */
+    private static double assymetricCosine(double dotProduct, double lenB) {
+        if (dotProduct == 0d) {
+            return 0d;
+        }
+        if (lenB == 0d) {
+            return Math.signum(dotProduct) * Double.POSITIVE_INFINITY;
+        }
+        return dotProduct / lenB;
+    }
+
+
+    /**
+     * Get cosine similarity between user A and B with specified metric.
+     * Return positive/negative infinity if metric for user A or B is 0.
+     */
+    public double sim(int user_id_A, int user_id_B, DoubleFunction<Double> metric) {
+        double dotProduct = dot(user_id_A, user_id_B);
+        if (dotProduct == 0d) {
+            return 0d;
+        }
+        return cosine(dotProduct, length(user_id_A, metric), length(user_id_B, metric));
     }    
 
+    /**
+     * Get cosine similarity between user A and B with specified built-in metric.
+     * Return positive/negative infinity if metric for user A or B is 0.
+     */
+    public double sim(int user_id_A, int user_id_B, Metric metric) {
+        double dotProduct = dot(user_id_A, user_id_B);
+        if (dotProduct == 0d) {
+            return 0d;
+        }
+        return cosine(dotProduct, length(user_id_A, metric), length(user_id_B, metric));
+    }
+
     /**
      * Get cosine similarity between user A and B with euclidean metric.
      */
     public double simEuclidean(int user_id_A, int user_id_B) {
-        return sim(user_id_A, user_id_B, rating -> Math.pow(rating, 2));
+        return sim(user_id_A, user_id_B, Metric.EUCLIDEAN);
     }
 
     /**
      * Get cosine similarity between user A and B with manhattan metric.
      */
     public double simManhattan(int user_id_A, int user_id_B) {
-        return sim(user_id_A, user_id_B, rating -> Math.abs(rating));
+        return sim(user_id_A, user_id_B, Metric.MANHATTAN);
     }
 
     /**
@@ -109,25 +235,80 @@ public class CosineSimilarity implements Similarity {
         if (dotProduct == 0d) {
             return 0d;
         }
-        double lenB = length(user_id_B, metric);
-        if (lenB == 0d) {
-            return Math.signum(dotProduct) * Double.POSITIVE_INFINITY;
-        }
-        return dotProduct / lenB;
+        return assymetricCosine(dotProduct, length(user_id_B, metric));
     }    
 
+    /**
+     * Get "assymetric" cosine similarity between user A and B with specified built-in metric.
+     */
+    public double simAssymetric(int user_id_A, int user_id_B, Metric metric) {
+        double dotProduct = dot(user_id_A, user_id_B);
+        if (dotProduct == 0d) {
+            return 0d;
+        }
+        return assymetricCosine(dotProduct, length(user_id_B, metric));
+    }
+
     /**
      * Get assymetric cosine similarity between user A and B with euclidean metric.
      */
     public double simAssymetricEuclidean(int user_id_A, int user_id_B) {
-        return simAssymetric(user_id_A, user_id_B, rating -> Math.pow(rating, 2));
+        return simAssymetric(user_id_A, user_id_B, Metric.EUCLIDEAN);
     }
 
     /**
      * Get assymetric cosine similarity between user A and B with manhattan metric.
      */
     public double simAssymetricManhattan(int user_id_A, int user_id_B) {
-        return simAssymetric(user_id_A, user_id_B, rating -> Math.abs(rating));
+        return simAssymetric(user_id_A, user_id_B, Metric.MANHATTAN);
+    }
+
+    /**
+     * Get cosine similarities between a user and each of other_user_ids with 
+     * specified built-in metric, so that out[i] = sim(user_id, other_user_ids[i], metric).
+     * The ratings of the user are scattered into a dense vector (by book index) once, 
+     * and each other user's row is then streamed against it.
+     */
+    public void simMany(int user_id, int[] other_user_ids, double[] out, Metric metric) {
+        int user = ratingMarix.getUserIndex(user_id);
+        if (user < 0) {
+            Arrays.fill(out, 0, other_user_ids.length, 0d);
+            return;
+        }
+        float[] dense = new float[ratingMarix.numBooks()];
+        int size = ratingMarix.rowSize(user);
+        for (int k = 0; k < size; ++k) {
+            dense[ratingMarix.rowBook(user, k)] = ratingMarix.rowRating(user, k);
+        }
+        double len = length(user_id, metric);
+
+        for (int i = 0; i < other_user_ids.length; ++i) {
+            int other = ratingMarix.getUserIndex(other_user_ids[i]);
+            if (other < 0) {
+                out[i] = 0d;
+                continue;
+            }
+            int otherSize = ratingMarix.rowSize(other);
+            int[] otherBooks = ratingMarix.rowBooksArray(other);
+            double dotProduct = 0d;
+            if (otherBooks != null) {
+                dotProduct = Kernels.gatherDot(dense, otherBooks, ratingMarix.rowRatingsArray(other), otherSize);
+            } else {
+                for (int k = 0; k < otherSize; ++k) {
+                    dotProduct += (double) dense[ratingMarix.rowBook(other, k)] * ratingMarix.rowRating(other, k);
+                }
+            }
+            out[i] = dotProduct == 0d ? 0d : cosine(dotProduct, len, length(other_user_ids[i], metric));
+        }
+    }
+
+    /**
+     * Batch version of the default similarity score, see sim.
+     * Override this method together with sim.
+     */
+    @Override
+    public void simMany(int user_id, int[] other_user_ids, double[] out) {
+        simMany(user_id, other_user_ids, out, Metric.EUCLIDEAN);
     }
 
     /**
@@ -184,6 +365,38 @@ public class CosineSimilarity implements Similarity {
         System.out.println(sim01 == expectedSim01);
         System.out.println(sim02 == expectedSim02);
         System.out.println(sim12 == expectedSim12);
+
+        /* Built-in metrics should agree with the boxed metric functions. */
+        System.out.println(sim.simManhattan(0, 2) == sim.sim(0, 2, rating -> Math.abs(rating)));
+        System.out.println(sim.simEuclidean(1, 2) == sim.sim(1, 2, rating -> Math.pow(rating, 2)));
+
+        /* Cached length of user 0 should be invalidated when its row changes. */
+        matrix.put(0, 5, 2);
+        double newLen0 = len0 + 2*2;
+        double newDot01 = dot01 + 2*1;
+        System.out.println(sim.simEuclidean(0, 1) == newDot01 / (newLen0 * len1));
+
+        /* Batch similarities should equal pairwise similarities. */
+        int[] others = {0, 1, 2, 3};
+        double[] out = new double[others.length];
+        sim.simMany(0, others, out);
+        boolean equal = true;
+        for (int i = 0; i < others.length; ++i) {
+            equal &= out[i] == sim.sim(0, others[i]);
+        }
+        System.out.println(equal);
+
+        /* Similarities allocate nothing once the cursors exist, also on compacted rows. */
+        double expected = sim.simEuclidean(0, 2);
+        matrix.compact();
+        var threads = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        boolean same = sim.simEuclidean(0, 2) == expected;
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 10000; ++i) {
+            same &= sim.simEuclidean(0, 2) == expected;
+        }
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+        System.out.println(same && allocated < 1024);
     }
     
 }
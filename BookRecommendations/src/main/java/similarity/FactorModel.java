@@ -0,0 +1,496 @@
+package similarity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Low-rank matrix factorization of a RatingMatrix.
+ *
+ * Ratings are approximated by mean + u . b, where u and b are dense
+ * vectors of length rank for each user and book. Factors are trained
+ * with alternating least squares: with the book vectors fixed, every user
+ * vector is the solution of a small regularized least squares problem
+ * over the user's ratings (and the other way around), so users (books)
+ * are solved independently in parallel.
+ *
+ * Once trained, the predicted preference of a user for a book is one dot
+ * product. When a user rates a book, only that user's vector is solved
+ * again against the fixed book vectors (fold-in).
+ *
+ * The model can be trained offline (see main) and saved to a file. Layout
+ * (little endian): magic, version, #users, #books, rank, mean, lambda (float),
+ * userIds int[#users], bookIds int[#books], user factors float[#users * rank],
+ * book factors float[#books * rank].
+ */
+public class FactorModel {
+    private static final int MAGIC = 0x46534c41; // "ALSF"
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+
+    private final int rank;
+    private final double lambda;
+    private final float mean;
+
+    private final IdIndex userIndex;
+    private final IdIndex bookIndex;
+    /* One array per user, replaced as a whole on fold-in. */
+    private volatile float[][] userFactors;
+    private final float[] bookFactors;
+
+    private FactorModel(int rank, double lambda, float mean, IdIndex userIndex, IdIndex bookIndex, float[][] userFactors, float[] bookFactors) {
+        this.rank = rank;
+        this.lambda = lambda;
+        this.mean = mean;
+        this.userIndex = userIndex;
+        this.bookIndex = bookIndex;
+        this.userFactors = userFactors;
+        this.bookFactors = bookFactors;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    /**
+     * Train a model with vectors of length rank and regularization lambda
+     * (scaled by the number of ratings of each user/book), running the
+     * given number of alternating iterations.
+     */
+    public static FactorModel train(RatingMatrix ratingMatrix, int rank, double lambda, int iterations) {
+        int numUsers = ratingMatrix.numUsers();
+        int numBooks = ratingMatrix.numBooks();
+        IdIndex userIndex = new IdIndex(numUsers);
+        for (int user = 0; user < numUsers; ++user) {
+            userIndex.getOrAdd(ratingMatrix.getUserId(user));
+        }
+        IdIndex bookIndex = new IdIndex(numBooks);
+        for (int book = 0; book < numBooks; ++book) {
+            bookIndex.getOrAdd(ratingMatrix.getBookId(book));
+        }
+
+        double sum = 0d;
+        long count = 0;
+        for (int user = 0; user < numUsers; ++user) {
+            int size = ratingMatrix.rowSize(user);
+            for (int k = 0; k < size; ++k) {
+                sum += ratingMatrix.rowRating(user, k);
+            }
+            count += size;
+        }
+        float mean = count == 0 ? 0f : (float) (sum / count);
+
+        float[] userFlat = new float[numUsers * rank];
+        float[] bookFlat = new float[numBooks * rank];
+        Random random = new Random(0);
+        for (int i = 0; i < bookFlat.length; ++i) {
+            bookFlat[i] = (float) (0.1 * random.nextGaussian());
+        }
+
+        ThreadLocal<Solver> solvers = ThreadLocal.withInitial(() -> new Solver(rank));
+        for (int iteration = 0; iteration < iterations; ++iteration) {
+            IntStream.range(0, numUsers).parallel().forEach(user -> {
+                Solver solver = solvers.get();
+                solver.reset();
+                int size = ratingMatrix.rowSize(user);
+                for (int k = 0; k < size; ++k) {
+                    solver.add(bookFlat, ratingMatrix.rowBook(user, k) * rank, ratingMatrix.rowRating(user, k) - mean);
+                }
+                solver.solve(lambda * size, userFlat, user * rank);
+            });
+            IntStream.range(0, numBooks).parallel().forEach(book -> {
+                Solver solver = solvers.get();
+                solver.reset();
+                int size = ratingMatrix.columnSize(book);
+                for (int c = 0; c < size; ++c) {
+                    solver.add(userFlat, ratingMatrix.columnUser(book, c) * rank, ratingMatrix.columnRating(book, c) - mean);
+                }
+                solver.solve(lambda * size, bookFlat, book * rank);
+            });
+        }
+
+        float[][] userFactors = new float[numUsers][];
+        for (int user = 0; user < numUsers; ++user) {
+            userFactors[user] = Arrays.copyOfRange(userFlat, user * rank, (user + 1) * rank);
+        }
+        return new FactorModel(rank, lambda, mean, userIndex, bookIndex, userFactors, bookFlat);
+    }
+
+    /**
+     * Predicted rating of user for book relative to the mean rating, i.e. u . b.
+     * Returns 0 if either user or book is not in the model.
+     */
+    public double score(int user_id, int book_id) {
+        float[] user = userVector(user_id);
+        int book = bookIndex.get(book_id);
+        if (user == null || book < 0) {
+            return 0d;
+        }
+        return dot(user, bookFactors, book * rank);
+    }
+
+    /**
+     * Scores of user for each of book_ids, see score.
+     */
+    public void scoreMany(int user_id, int[] book_ids, double[] out) {
+        float[] user = userVector(user_id);
+        for (int i = 0; i < book_ids.length; ++i) {
+            int book = user == null ? -1 : bookIndex.get(book_ids[i]);
+            out[i] = book < 0 ? 0d : dot(user, bookFactors, book * rank);
+        }
+    }
+
+    /**
+     * Predicted rating of user for book, or the mean rating if either is not in the model.
+     */
+    public double predict(int user_id, int book_id) {
+        return mean + score(user_id, book_id);
+    }
+
+    /**
+     * Solve the vector of user again from its ratings in ratingMatrix, keeping
+     * all book vectors fixed. Users not in the model are added.
+     */
+    public synchronized void foldIn(int user_id, RatingMatrix ratingMatrix) {
+        Solver solver = new Solver(rank);
+        int count = 0;
+        int user = ratingMatrix.getUserIndex(user_id);
+        int size = user < 0 ? 0 : ratingMatrix.rowSize(user);
+        for (int k = 0; k < size; ++k) {
+            int book = bookIndex.get(ratingMatrix.getBookId(ratingMatrix.rowBook(user, k)));
+            if (book >= 0) {
+                solver.add(bookFactors, book * rank, ratingMatrix.rowRating(user, k) - mean);
+                ++count;
+            }
+        }
+        float[] vector = new float[rank];
+        solver.solve(lambda * count, vector, 0);
+
+        float[][] factors = userFactors;
+        int index = userIndex.getOrAdd(user_id);
+        if (index >= factors.length) {
+            factors = Arrays.copyOf(factors, Math.max(index + 1, 2 * factors.length));
+        }
+        factors[index] = vector;
+        userFactors = factors;
+    }
+
+    /**
+     * Fold in users as they rate books in ratingMatrix.
+     */
+    public void attach(RatingMatrix ratingMatrix) {
+        ratingMatrix.addListener((user_id, book_id, rating) -> foldIn(user_id, ratingMatrix));
+    }
+
+    private float[] userVector(int user_id) {
+        float[][] factors = userFactors;
+        int user = userIndex.get(user_id);
+        return user < 0 || user >= factors.length ? null : factors[user];
+    }
+
+    private static double dot(float[] vector, float[] factors, int offset) {
+        return Kernels.dot(vector, 0, factors, offset, vector.length);
+    }
+
+    /**
+     * Normal equations (sum of x x^T + lambdaN I) w = sum of r x for one vector w.
+     */
+    private static class Solver {
+        private final int rank;
+        private final double[] a;
+        private final double[] b;
+
+        Solver(int rank) {
+            this.rank = rank;
+            a = new double[rank * rank];
+            b = new double[rank];
+        }
+
+        void reset() {
+            Arrays.fill(a, 0d);
+            Arrays.fill(b, 0d);
+        }
+
+        /**
+         * Add the vector at offset of factors with target rating.
+         */
+        void add(float[] factors, int offset, double rating) {
+            for (int i = 0; i < rank; ++i) {
+                double x = factors[offset + i];
+                b[i] += rating * x;
+                /* Lower triangle only. */
+                for (int j = 0; j <= i; ++j) {
+                    a[i * rank + j] += x * factors[offset + j];
+                }
+            }
+        }
+
+        /**
+         * Solve by Cholesky decomposition and write the result at offset of out.
+         * Without ratings (lambdaN = 0) the result is the zero vector.
+         */
+        void solve(double lambdaN, float[] out, int offset) {
+            if (lambdaN <= 0) {
+                Arrays.fill(out, offset, offset + rank, 0f);
+                return;
+            }
+            for (int i = 0; i < rank; ++i) {
+                a[i * rank + i] += lambdaN;
+            }
+            /* a = L L^T, with L stored in the lower triangle of a. */
+            for (int j = 0; j < rank; ++j) {
+                double diagonal = a[j * rank + j];
+                for (int k = 0; k < j; ++k) {
+                    diagonal -= a[j * rank + k] * a[j * rank + k];
+                }
+                diagonal = Math.sqrt(diagonal);
+                a[j * rank + j] = diagonal;
+                for (int i = j + 1; i < rank; ++i) {
+                    double value = a[i * rank + j];
+                    for (int k = 0; k < j; ++k) {
+                        value -= a[i * rank + k] * a[j * rank + k];
+                    }
+                    a[i * rank + j] = value / diagonal;
+                }
+            }
+            /* Forward substitution L y = b, then back substitution L^T w = y. */
+            for (int i = 0; i < rank; ++i) {
+                double value = b[i];
+                for (int k = 0; k < i; ++k) {
+                    value -= a[i * rank + k] * b[k];
+                }
+                b[i] = value / a[i * rank + i];
+            }
+            for (int i = rank - 1; i >= 0; --i) {
+                double value = b[i];
+                for (int k = i + 1; k < rank; ++k) {
+                    value -= a[k * rank + i] * b[k];
+                }
+                b[i] = value / a[i * rank + i];
+            }
+            for (int i = 0; i < rank; ++i) {
+                out[offset + i] = (float) b[i];
+            }
+        }
+    }
+
+    /**
+     * Write the model to file, replacing it atomically.
+     */
+    public synchronized void save(Path file) throws IOException {
+        int numUsers = userIndex.size();
+        int numBooks = bookIndex.size();
+        long size = HEADER_SIZE + 4L * (numUsers + numBooks) + 4L * rank * (numUsers + numBooks);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Factor model too large: " + numUsers + " users, " + numBooks + " books");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(numUsers).putInt(numBooks).putInt(rank).putFloat(mean).putFloat((float) lambda);
+        for (int user = 0; user < numUsers; ++user) {
+            buffer.putInt(userIndex.getId(user));
+        }
+        for (int book = 0; book < numBooks; ++book) {
+            buffer.putInt(bookIndex.getId(book));
+        }
+        for (int user = 0; user < numUsers; ++user) {
+            for (float value : userFactors[user]) {
+                buffer.putFloat(value);
+            }
+        }
+        for (float value : bookFactors) {
+            buffer.putFloat(value);
+        }
+        buffer.flip();
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a model from file.
+     */
+    public static FactorModel load(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException(file + " is not a factor model of version " + VERSION);
+        }
+        int numUsers = buffer.getInt();
+        int numBooks = buffer.getInt();
+        int rank = buffer.getInt();
+        float mean = buffer.getFloat();
+        double lambda = buffer.getFloat();
+        if (buffer.remaining() != 4L * (numUsers + numBooks) + 4L * rank * (numUsers + numBooks)) {
+            throw new IOException("Factor model " + file + " is truncated");
+        }
+        IdIndex userIndex = new IdIndex(numUsers);
+        for (int user = 0; user < numUsers; ++user) {
+            userIndex.getOrAdd(buffer.getInt());
+        }
+        IdIndex bookIndex = new IdIndex(numBooks);
+        for (int book = 0; book < numBooks; ++book) {
+            bookIndex.getOrAdd(buffer.getInt());
+        }
+        float[][] userFactors = new float[numUsers][rank];
+        for (int user = 0; user < numUsers; ++user) {
+            buffer.asFloatBuffer().get(userFactors[user]);
+            buffer.position(buffer.position() + 4 * rank);
+        }
+        float[] bookFactors = new float[numBooks * rank];
+        buffer.asFloatBuffer().get(bookFactors);
+        return new FactorModel(rank, lambda, mean, userIndex, bookIndex, userFactors, bookFactors);
+    }
+
+
+    /**
+     * Train the factor model (./factors.model, or the file given as first argument)
+     * from ratings (./ratings.json, or the second argument), with rank 32 (or the
+     * third argument), lambda 0.1 and 10 iterations.
+     * With --check as only argument, test the model on random ratings instead.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 1 && args[0].equals("--check")) {
+            check();
+            return;
+        }
+        Path file = Path.of(args.length > 0 ? args[0] : "./factors.model");
+        Path source = Path.of(args.length > 1 ? args[1] : "./ratings.json");
+        int rank = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        long startTime = System.currentTimeMillis();
+        var ratingMatrix = source.toString().endsWith(".ndjson")
+                ? RatingsLoader.loadNdjson(source, Runtime.getRuntime().availableProcessors())
+                : RatingsLoader.loadJson(source);
+        train(ratingMatrix, rank, 0.1, 10).save(file);
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        System.out.printf("Trained rank %d factors of %d users and %d books to %s in %.3f seconds%n",
+                rank, ratingMatrix.numUsers(), ratingMatrix.numBooks(), file, elapsedTime / 1000.0);
+    }
+
+    /**
+     * Test that training fits ratings of rank 2, that the solver agrees with
+     * Gaussian elimination, that folding in a trained user barely moves it, and
+     * that a saved model scores the same when loaded.
+     */
+    private static void check() throws IOException {
+        /* Half of the ratings 3 + u . b of random vectors u, b of length 2 (spread about 1.4). */
+        var random = new Random(42);
+        double[][] users = new double[80][2];
+        double[][] books = new double[50][2];
+        for (double[] vector : users) {
+            vector[0] = random.nextGaussian();
+            vector[1] = random.nextGaussian();
+        }
+        for (double[] vector : books) {
+            vector[0] = random.nextGaussian();
+            vector[1] = random.nextGaussian();
+        }
+        var matrix = new RatingMatrix();
+        for (int user_id = 0; user_id < users.length; ++user_id) {
+            for (int book_id = 0; book_id < books.length; ++book_id) {
+                if (random.nextBoolean()) {
+                    matrix.put(user_id, book_id, 3 + users[user_id][0] * books[book_id][0] + users[user_id][1] * books[book_id][1]);
+                }
+            }
+        }
+        FactorModel model = train(matrix, 2, 1e-4, 30);
+        double squares = 0d;
+        int count = 0;
+        for (int user_id : matrix.getUserIds()) {
+            for (var entry : matrix.getEntrySetFromUser(user_id)) {
+                double error = model.predict(user_id, entry.getKey()) - entry.getValue();
+                squares += error * error;
+                ++count;
+            }
+        }
+        System.out.println(Math.sqrt(squares / count) < 0.1);
+
+        /* Normal equations of a few random vectors, solved directly. */
+        int rank = 4;
+        double lambdaN = 0.5;
+        float[] vectors = new float[6 * rank];
+        double[] ratings = new double[6];
+        for (int i = 0; i < vectors.length; ++i) {
+            vectors[i] = (float) random.nextGaussian();
+        }
+        var solver = new Solver(rank);
+        double[][] system = new double[rank][rank + 1];
+        for (int v = 0; v < ratings.length; ++v) {
+            ratings[v] = 1 + random.nextInt(5);
+            solver.add(vectors, v * rank, ratings[v]);
+            for (int i = 0; i < rank; ++i) {
+                for (int j = 0; j < rank; ++j) {
+                    system[i][j] += (double) vectors[v * rank + i] * vectors[v * rank + j];
+                }
+                system[i][rank] += ratings[v] * vectors[v * rank + i];
+            }
+        }
+        for (int i = 0; i < rank; ++i) {
+            system[i][i] += lambdaN;
+        }
+        for (int i = 0; i < rank; ++i) {
+            for (int r = i + 1; r < rank; ++r) {
+                double factor = system[r][i] / system[i][i];
+                for (int j = i; j <= rank; ++j) {
+                    system[r][j] -= factor * system[i][j];
+                }
+            }
+        }
+        double[] direct = new double[rank];
+        for (int i = rank - 1; i >= 0; --i) {
+            double value = system[i][rank];
+            for (int j = i + 1; j < rank; ++j) {
+                value -= system[i][j] * direct[j];
+            }
+            direct[i] = value / system[i][i];
+        }
+        float[] solved = new float[rank];
+        solver.solve(lambdaN, solved, 0);
+        boolean agrees = true;
+        for (int i = 0; i < rank; ++i) {
+            agrees &= Math.abs(solved[i] - direct[i]) < 1e-5 * Math.max(1, Math.abs(direct[i]));
+        }
+        System.out.println(agrees);
+
+        /* Trained user vectors already solve their ratings against nearly the final book vectors. */
+        double[] before = new double[books.length];
+        double[] after = new double[books.length];
+        int[] book_ids = IntStream.range(0, books.length).toArray();
+        model.scoreMany(7, book_ids, before);
+        model.foldIn(7, matrix);
+        model.scoreMany(7, book_ids, after);
+        double moved = 0d;
+        for (int i = 0; i < books.length; ++i) {
+            moved = Math.max(moved, Math.abs(after[i] - before[i]));
+        }
+        System.out.println(moved < 0.05);
+
+        Path file = Files.createTempFile("factors", ".model");
+        try {
+            model.save(file);
+            FactorModel loaded = load(file);
+            boolean equal = loaded.getRank() == model.getRank();
+            for (int user_id = 0; user_id < users.length; ++user_id) {
+                for (int book_id = 0; book_id < books.length; ++book_id) {
+                    equal &= loaded.predict(user_id, book_id) == model.predict(user_id, book_id);
+                }
+            }
+            System.out.println(equal);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
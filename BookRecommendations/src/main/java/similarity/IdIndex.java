@@ -0,0 +1,115 @@
+package similarity;
+
+import java.util.Arrays;
+
+/**
+ * Dense remapping of sparse id's (such as Goodreads user and book id's,
+ * e.g. 164001102) to indices 0, 1, 2, ... in order of insertion.
+ *
+ * Internal representation is an open addressing hash table over
+ * primitive ints, so lookups never box.
+ */
+public class IdIndex {
+    private static final int FREE = -1;
+
+    /* Hash table from id to index. Free slots have index FREE. */
+    private int[] keys;
+    private int[] values;
+    private int mask;
+
+    /* Inverse mapping from index to id. */
+    private int[] ids;
+    private int size = 0;
+
+    public IdIndex() {
+        this(16);
+    }
+
+    public IdIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, FREE);
+        mask = capacity - 1;
+        ids = new int[Math.max(4, expectedSize)];
+    }
+
+    /**
+     * Get index of id, or -1 if id has not been added.
+     */
+    public int get(int id) {
+        int slot = hash(id) & mask;
+        while (values[slot] != FREE) {
+            if (keys[slot] == id) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Get index of id, adding it as the next index if not present.
+     */
+    public int getOrAdd(int id) {
+        int slot = hash(id) & mask;
+        while (values[slot] != FREE) {
+            if (keys[slot] == id) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        int index = size++;
+        keys[slot] = id;
+        values[slot] = index;
+        if (index == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+        }
+        ids[index] = id;
+        /* Keep load factor below 1/2. */
+        if (2 * size > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return index;
+    }
+
+    /**
+     * Get id at index.
+     */
+    public int getId(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return ids[index];
+    }
+
+    /**
+     * Number of id's added.
+     */
+    public int size() {
+        return size;
+    }
+
+    private void rehash(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, FREE);
+        mask = capacity - 1;
+        for (int index = 0; index < size; ++index) {
+            int slot = hash(ids[index]) & mask;
+            while (values[slot] != FREE) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = ids[index];
+            values[slot] = index;
+        }
+    }
+
+    private static int hash(int id) {
+        /* Spread bits (murmur3 finalizer) since id's are far from uniform. */
+        int h = id * 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+}
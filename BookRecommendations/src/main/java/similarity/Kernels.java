@@ -0,0 +1,138 @@
+package similarity;
+
+/**
+ * Numeric kernels over dense arrays, used by the similarity and scoring code.
+ *
+ * The implementation is chosen once at start-up: kernels vectorized with the
+ * Vector API if the jdk.incubator.vector module has been added to the JVM
+ * (--add-modules jdk.incubator.vector) and the CPU has SIMD registers of at
+ * least 4 floats, otherwise plain loops. Setting the system property
+ * similarity.scalarKernels=true forces the plain loops.
+ *
+ * Sums over floats are accumulated in float lanes, so they are exact (and
+ * independent of the vector width) for integer ratings.
+ */
+public final class Kernels {
+
+    /**
+     * Kernel implementation, see ScalarKernels and VectorKernels.
+     */
+    interface Impl {
+        float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+        float sumOfSquares(float[] a, int offset, int length);
+
+        float sumOfAbs(float[] a, int offset, int length);
+
+        float gatherDot(float[] dense, int[] indices, float[] values, int length);
+
+        void scaleAdd(double[] base, double weight, double[] values, double[] out, int length);
+    }
+
+    private static final Impl IMPL = select();
+
+    private Kernels() {
+    }
+
+    private static Impl select() {
+        if (!Boolean.getBoolean("similarity.scalarKernels")
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                /* Loaded reflectively, so the class is never linked without the module. */
+                return (Impl) Class.forName("similarity.VectorKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                /* Fall through to scalar kernels. */
+            }
+        }
+        return new ScalarKernels();
+    }
+
+    /**
+     * True if the vectorized kernels are in use.
+     */
+    public static boolean isVectorized() {
+        return !(IMPL instanceof ScalarKernels);
+    }
+
+    /**
+     * Sum of a[aOffset + i] * b[bOffset + i] for i < length.
+     */
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        return IMPL.dot(a, aOffset, b, bOffset, length);
+    }
+
+    /**
+     * Sum of a[offset + i]^2 for i < length.
+     */
+    public static float sumOfSquares(float[] a, int offset, int length) {
+        return IMPL.sumOfSquares(a, offset, length);
+    }
+
+    /**
+     * Sum of |a[offset + i]| for i < length.
+     */
+    public static float sumOfAbs(float[] a, int offset, int length) {
+        return IMPL.sumOfAbs(a, offset, length);
+    }
+
+    /**
+     * Dot product of a sparse vector (indices, values) with a dense vector:
+     * sum of dense[indices[i]] * values[i] for i < length.
+     */
+    public static float gatherDot(float[] dense, int[] indices, float[] values, int length) {
+        return IMPL.gatherDot(dense, indices, values, length);
+    }
+
+    /**
+     * out[i] = base[i] + weight * values[i] for i < length. out may be values.
+     */
+    public static void scaleAdd(double[] base, double weight, double[] values, double[] out, int length) {
+        IMPL.scaleAdd(base, weight, values, out, length);
+    }
+
+
+    /**
+     * Test that the selected kernels agree with the scalar kernels.
+     */
+    public static void main(String[] args) {
+        var random = new java.util.Random(11);
+        var scalar = new ScalarKernels();
+        System.out.println("vectorized: " + isVectorized());
+
+        for (int length : new int[] {0, 1, 3, 8, 17, 64, 1001}) {
+            float[] a = new float[length + 5];
+            float[] b = new float[length + 7];
+            for (int i = 0; i < a.length; ++i) {
+                a[i] = 1 + random.nextInt(5);
+            }
+            for (int i = 0; i < b.length; ++i) {
+                b[i] = 1 + random.nextInt(5);
+            }
+            System.out.println(dot(a, 5, b, 7, length) == scalar.dot(a, 5, b, 7, length));
+            System.out.println(sumOfSquares(a, 3, length) == scalar.sumOfSquares(a, 3, length));
+            System.out.println(sumOfAbs(b, 2, length) == scalar.sumOfAbs(b, 2, length));
+
+            int[] indices = new int[length];
+            for (int i = 0; i < length; ++i) {
+                indices[i] = random.nextInt(b.length);
+            }
+            System.out.println(gatherDot(b, indices, a, length) == scalar.gatherDot(b, indices, a, length));
+
+            double[] base = new double[length];
+            double[] values = new double[length];
+            for (int i = 0; i < length; ++i) {
+                base[i] = random.nextDouble();
+                values[i] = random.nextDouble();
+            }
+            double[] out = new double[length];
+            double[] expected = new double[length];
+            scaleAdd(base, 2.5, values, out, length);
+            scalar.scaleAdd(base, 2.5, values, expected, length);
+            boolean close = true;
+            for (int i = 0; i < length; ++i) {
+                close &= Math.abs(out[i] - expected[i]) <= 1e-12;
+            }
+            System.out.println(close);
+        }
+    }
+}
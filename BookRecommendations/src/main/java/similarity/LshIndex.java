@@ -0,0 +1,344 @@
+package similarity;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Locality sensitive hashing of the rows of a RatingMatrix, to generate a
+ * small set of candidate neighbors of a user without scanning every user
+ * who has rated a book in common with it.
+ *
+ * Each user gets a signature of bands * rows hashes of its row:
+ *
+ *   MINHASH   minimum of each hash function over the rated books, so two
+ *             users agree on a hash with probability equal to the Jaccard
+ *             similarity of their sets of rated books.
+ *   SIMHASH   sign of the projection of the mean-centered ratings onto a
+ *             random hyperplane, so two users agree on a bit with probability
+ *             1 - angle / pi between their centered rating vectors.
+ *
+ * The signature is split into bands of rows hashes, and users whose band
+ * is equal share a bucket in that band's table. Candidates of a user are
+ * the users sharing the most buckets with it. More bands (or fewer rows per
+ * band) raise recall at the cost of larger buckets and slower queries;
+ * maxCandidates bounds the work done by exact similarity afterwards.
+ *
+ * Tables are sorted arrays of (band key, user index), so a bucket is a
+ * binary search and a contiguous scan. Query signatures are computed from
+ * the current row, so users who rate books after the index is built still
+ * find candidates (but are not candidates themselves until a rebuild).
+ */
+public class LshIndex {
+    /* Largest number of entries read from a single bucket per query. */
+    private static final int MAX_BUCKET_SCAN = 4096;
+
+    public enum Mode {
+        MINHASH, SIMHASH
+    }
+
+    private final RatingMatrix ratingMatrix;
+    private final Mode mode;
+    private final int bands;
+    private final int rows;
+    private final long[] seeds;
+
+    /* Per band: band keys ascending, and user index of each key. */
+    private final int[][] bucketKeys;
+    private final int[][] bucketUsers;
+
+    /**
+     * Build index of all users in ratingMatrix, with signatures of bands bands
+     * of rows hashes each. Users are hashed in parallel.
+     */
+    public LshIndex(RatingMatrix ratingMatrix, Mode mode, int bands, int rows) {
+        if (bands <= 0 || rows <= 0 || (mode == Mode.SIMHASH && rows > 32)) {
+            throw new IllegalArgumentException("Invalid number of bands/rows: " + bands + "/" + rows);
+        }
+        this.ratingMatrix = ratingMatrix;
+        this.mode = mode;
+        this.bands = bands;
+        this.rows = rows;
+        int numSeeds = mode == Mode.MINHASH ? bands * rows : (bands * rows + 63) / 64;
+        seeds = new long[numSeeds];
+        long seed = 0x5eed;
+        for (int i = 0; i < numSeeds; ++i) {
+            seed = mix(seed + i);
+            seeds[i] = seed;
+        }
+
+        int numUsers = ratingMatrix.numUsers();
+        int[] keys = new int[numUsers * bands];
+        IntStream.range(0, numUsers).parallel().forEach(user -> bandKeys(user, keys, user * bands));
+
+        bucketKeys = new int[bands][];
+        bucketUsers = new int[bands][];
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            long[] entries = new long[numUsers];
+            int n = 0;
+            for (int user = 0; user < numUsers; ++user) {
+                /* Users without ratings collide with every other empty user, leave them out. */
+                if (ratingMatrix.rowSize(user) > 0) {
+                    entries[n++] = ((long) keys[user * bands + band] << 32) | user;
+                }
+            }
+            Arrays.sort(entries, 0, n);
+            bucketKeys[band] = new int[n];
+            bucketUsers[band] = new int[n];
+            for (int i = 0; i < n; ++i) {
+                bucketKeys[band][i] = (int) (entries[i] >> 32);
+                bucketUsers[band][i] = (int) entries[i];
+            }
+        });
+    }
+
+    /**
+     * Get at most maxCandidates user id's likely to be similar to user, ordered
+     * by decreasing number of shared buckets. Empty if user has no ratings.
+     */
+    public int[] candidates(int user_id, int maxCandidates) {
+        int user = ratingMatrix.getUserIndex(user_id);
+        if (user < 0 || ratingMatrix.rowSize(user) == 0 || maxCandidates <= 0) {
+            return new int[0];
+        }
+        int[] keys = new int[bands];
+        bandKeys(user, keys, 0);
+
+        /* Count shared buckets per colliding user. */
+        IdIndex slots = new IdIndex();
+        int[] counts = new int[16];
+        for (int band = 0; band < bands; ++band) {
+            int[] bandKeys = bucketKeys[band];
+            int[] bandUsers = bucketUsers[band];
+            int start = lowerBound(bandKeys, keys[band]);
+            int end = Math.min(bandKeys.length, start + MAX_BUCKET_SCAN);
+            for (int i = start; i < end && bandKeys[i] == keys[band]; ++i) {
+                int other = bandUsers[i];
+                if (other == user) {
+                    continue;
+                }
+                int slot = slots.getOrAdd(other);
+                if (slot == counts.length) {
+                    counts = Arrays.copyOf(counts, 2 * counts.length);
+                }
+                ++counts[slot];
+            }
+        }
+
+        /* Order by count (descending), then by user index. */
+        long[] order = new long[slots.size()];
+        for (int slot = 0; slot < order.length; ++slot) {
+            order[slot] = ((long) (bands - counts[slot]) << 32) | slots.getId(slot);
+        }
+        Arrays.sort(order);
+        int[] candidate_ids = new int[Math.min(maxCandidates, order.length)];
+        for (int i = 0; i < candidate_ids.length; ++i) {
+            candidate_ids[i] = ratingMatrix.getUserId((int) order[i]);
+        }
+        return candidate_ids;
+    }
+
+    /**
+     * Write the band keys of the signature of user (index) to out[offset..offset + bands).
+     */
+    private void bandKeys(int user, int[] out, int offset) {
+        int size = ratingMatrix.rowSize(user);
+        if (mode == Mode.MINHASH) {
+            int[] signature = new int[bands * rows];
+            Arrays.fill(signature, Integer.MAX_VALUE);
+            for (int k = 0; k < size; ++k) {
+                int book = ratingMatrix.rowBook(user, k);
+                for (int i = 0; i < signature.length; ++i) {
+                    int hash = (int) (mix(book ^ seeds[i]) >>> 33);
+                    if (hash < signature[i]) {
+                        signature[i] = hash;
+                    }
+                }
+            }
+            for (int band = 0; band < bands; ++band) {
+                long key = band;
+                for (int r = 0; r < rows; ++r) {
+                    key = mix(key ^ signature[band * rows + r]);
+                }
+                out[offset + band] = (int) key;
+            }
+        } else {
+            double mean = 0d;
+            for (int k = 0; k < size; ++k) {
+                mean += ratingMatrix.rowRating(user, k);
+            }
+            mean /= Math.max(1, size);
+            /* Projections onto bands * rows hyperplanes with random +-1 coordinates. */
+            double[] projections = new double[bands * rows];
+            for (int k = 0; k < size; ++k) {
+                int book = ratingMatrix.rowBook(user, k);
+                double centered = ratingMatrix.rowRating(user, k) - mean;
+                for (int g = 0; g < seeds.length; ++g) {
+                    long signs = mix(book ^ seeds[g]);
+                    int bits = Math.min(64, projections.length - 64 * g);
+                    for (int j = 0; j < bits; ++j) {
+                        projections[64 * g + j] += ((signs >>> j) & 1) != 0 ? centered : -centered;
+                    }
+                }
+            }
+            for (int band = 0; band < bands; ++band) {
+                int bits = 0;
+                for (int r = 0; r < rows; ++r) {
+                    bits = (bits << 1) | (projections[band * rows + r] > 0 ? 1 : 0);
+                }
+                out[offset + band] = (int) mix(((long) band << 32) | (bits & 0xffffffffL));
+            }
+        }
+    }
+
+    /**
+     * Fraction of the exact top k neighbors of the sample users (by selecting among
+     * all users with a book in common) that are found when selecting among at most
+     * maxCandidates LSH candidates instead. For SIMHASH, similarity should be on
+     * mean-centered ratings (see centered), as that is what the bits estimate.
+     */
+    public double recall(Similarity similarity, int k, int[] sample_user_ids, int maxCandidates) {
+        var selector = new NeighborSelector(ratingMatrix, similarity, k, 1, Double.NEGATIVE_INFINITY);
+        long found = 0;
+        long total = 0;
+        for (int user_id : sample_user_ids) {
+            int user = ratingMatrix.getUserIndex(user_id);
+            if (user < 0) {
+                continue;
+            }
+            var exact = selector.select(user_id, NeighborGraph.coRaters(ratingMatrix, user));
+            var approximate = selector.select(user_id, candidates(user_id, maxCandidates));
+            IdIndex approximateIds = new IdIndex(approximate.size());
+            for (int id : approximate.userIds()) {
+                approximateIds.getOrAdd(id);
+            }
+            for (int id : exact.userIds()) {
+                if (approximateIds.get(id) >= 0) {
+                    ++found;
+                }
+            }
+            total += exact.size();
+        }
+        return total == 0 ? 1d : (double) found / total;
+    }
+
+    private static int lowerBound(int[] keys, int key) {
+        int lo = 0;
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 64-bit finalizer of MurmurHash3.
+     */
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+
+    /**
+     * Copy of ratingMatrix with the ratings of each user minus the user's mean
+     * rating, so that cosine similarity on it is the similarity SIMHASH estimates.
+     */
+    static RatingMatrix centered(RatingMatrix ratingMatrix) {
+        var centered = new RatingMatrix();
+        for (int user = 0; user < ratingMatrix.numUsers(); ++user) {
+            int size = ratingMatrix.rowSize(user);
+            double mean = 0d;
+            for (int k = 0; k < size; ++k) {
+                mean += ratingMatrix.rowRating(user, k);
+            }
+            mean /= Math.max(1, size);
+            for (int k = 0; k < size; ++k) {
+                centered.put(ratingMatrix.getUserId(user), ratingMatrix.getBookId(ratingMatrix.rowBook(user, k)), ratingMatrix.rowRating(user, k) - mean);
+            }
+        }
+        return centered;
+    }
+
+    /**
+     * Print recall of the top 10 neighbors and query latency for a few settings,
+     * on users drawn from clusters of similar taste. MINHASH is measured against
+     * cosine similarity of the ratings, SIMHASH against cosine similarity of the
+     * mean-centered ratings.
+     */
+    public static void main(String[] args) {
+        var ratingMatrix = new RatingMatrix();
+        var random = new java.util.Random(17);
+        int numClusters = 50;
+        int numBooks = numClusters * 100;
+        /* Users of a cluster rate books around the cluster's taste for them. */
+        double[][] taste = new double[numClusters][numBooks];
+        for (double[] clusterTaste : taste) {
+            for (int book_id = 0; book_id < numBooks; ++book_id) {
+                clusterTaste[book_id] = 1.5 * random.nextGaussian();
+            }
+        }
+        for (int user_id = 0; user_id < 5000; ++user_id) {
+            int cluster = user_id % numClusters;
+            for (int n = 0; n < 30; ++n) {
+                /* Mostly books of the user's cluster, some random books. */
+                int book_id = random.nextInt(4) > 0 ? cluster * 100 + random.nextInt(100) : random.nextInt(numBooks);
+                double rating = Math.round(3 + taste[cluster][book_id] + 0.5 * random.nextGaussian());
+                ratingMatrix.put(user_id, book_id, Math.max(1, Math.min(5, rating)));
+            }
+        }
+        var centeredMatrix = centered(ratingMatrix);
+        var cosine = new CosineSimilarity(ratingMatrix);
+        var centeredCosine = new CosineSimilarity(centeredMatrix);
+        int[] sample = new int[200];
+        for (int i = 0; i < sample.length; ++i) {
+            sample[i] = random.nextInt(5000);
+        }
+
+        double minHashRecall = 0d;
+        double simHashRecall = 0d;
+        for (Mode mode : Mode.values()) {
+            /* Rating sets overlap little, so MinHash needs short bands (64 x 1 is the
+             * setting of BookSearchUi). A SimHash bit agrees by chance half of the time,
+             * so it needs long bands, and many of them. */
+            int[][] settings = mode == Mode.MINHASH ? new int[][] {{32, 2}, {64, 1}, {128, 1}} : new int[][] {{256, 2}, {512, 3}, {512, 4}};
+            RatingMatrix matrix = mode == Mode.MINHASH ? ratingMatrix : centeredMatrix;
+            Similarity similarity = mode == Mode.MINHASH ? cosine : centeredCosine;
+            for (int[] setting : settings) {
+                var index = new LshIndex(matrix, mode, setting[0], setting[1]);
+                for (int maxCandidates : new int[] {100, 500}) {
+                    long startTime = System.nanoTime();
+                    for (int user_id : sample) {
+                        index.candidates(user_id, maxCandidates);
+                    }
+                    double latency = (System.nanoTime() - startTime) / 1e6 / sample.length;
+                    double recall = index.recall(similarity, 10, sample, maxCandidates);
+                    System.out.printf("%s bands %d rows %d candidates %d: recall %.3f, %.3f ms/query%n",
+                            mode, setting[0], setting[1], maxCandidates, recall, latency);
+                    if (maxCandidates == 500 && mode == Mode.MINHASH && setting[0] == 64 && setting[1] == 1) {
+                        minHashRecall = recall;
+                    }
+                    if (maxCandidates == 500 && mode == Mode.SIMHASH && setting[0] == 512 && setting[1] == 4) {
+                        simHashRecall = recall;
+                    }
+                }
+            }
+        }
+        /* Both modes find nearly all of the top 10 among 500 candidates. */
+        System.out.println(minHashRecall > 0.95);
+        System.out.println(simHashRecall > 0.95);
+
+        /* A user is never its own candidate, and candidates are bounded. */
+        var index = new LshIndex(ratingMatrix, Mode.MINHASH, 32, 2);
+        int[] candidates = index.candidates(0, 50);
+        System.out.println(candidates.length <= 50 && Arrays.stream(candidates).noneMatch(id -> id == 0));
+    }
+}
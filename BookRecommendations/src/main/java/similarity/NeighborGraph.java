@@ -0,0 +1,246 @@
+package similarity;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Precomputed k-nearest-neighbor graph between users, stored in a file
+ * and used as a Similarity.
+ *
+ * The graph is built offline (see main) by selecting, for every user, the
+ * K most similar users among those who have rated a book in common with it.
+ * The file (see NeighborLists for its layout) is memory-mapped, and stamped
+ * with the ratings it was built from so that a stale graph is not used.
+ *
+ * Similarities between users not in each other's neighbor lists are 0.
+ * Users not in the graph (e.g. new users rating books in the UI) are
+ * delegated to a fallback Similarity.
+ */
+public class NeighborGraph implements Similarity {
+    private static final int MAGIC = 0x474e4e4b; // "KNNG"
+
+    private final NeighborLists lists;
+    private final Similarity fallback;
+
+    private NeighborGraph(NeighborLists lists, Similarity fallback) {
+        this.lists = lists;
+        this.fallback = fallback;
+    }
+
+    /**
+     * Open the graph stored in file. If source is not null, the graph must
+     * have been built from the current version of that ratings file.
+     * Throws IOException if the graph is missing, invalid or stale, in which
+     * case neighbors should be selected without it.
+     */
+    public static NeighborGraph open(Path file, Path source, Similarity fallback) throws IOException {
+        return new NeighborGraph(NeighborLists.open(file, MAGIC, source), fallback);
+    }
+
+    public Similarity getFallback() {
+        return fallback;
+    }
+
+    /**
+     * True if user has a precomputed neighbor list.
+     */
+    public boolean contains(int user_id) {
+        return lists.indexOf(user_id) >= 0;
+    }
+
+    /**
+     * Get precomputed neighbors of user, by decreasing similarity.
+     * Empty if user is not in the graph.
+     */
+    public NeighborSelector.Neighbors neighbors(int user_id) {
+        int user = lists.indexOf(user_id);
+        if (user < 0) {
+            return new NeighborSelector.Neighbors(new int[0], new double[0]);
+        }
+        int count = lists.count(user);
+        int[] ids = new int[count];
+        double[] scores = new double[count];
+        for (int i = 0; i < count; ++i) {
+            ids[i] = lists.neighbor(user, i);
+            scores[i] = lists.sim(user, i);
+        }
+        return new NeighborSelector.Neighbors(ids, scores);
+    }
+
+    /**
+     * Get similarity between user A and B from the neighbor list of A,
+     * or 0 if B is not a neighbor of A.
+     */
+    @Override
+    public double sim(int user_id_A, int user_id_B) {
+        int user = lists.indexOf(user_id_A);
+        if (user < 0) {
+            return fallback.sim(user_id_A, user_id_B);
+        }
+        int count = lists.count(user);
+        for (int i = 0; i < count; ++i) {
+            if (lists.neighbor(user, i) == user_id_B) {
+                return lists.sim(user, i);
+            }
+        }
+        return 0d;
+    }
+
+    /**
+     * Get similarities between a user and each of other_user_ids,
+     * scanning the neighbor list of the user once.
+     */
+    @Override
+    public void simMany(int user_id, int[] other_user_ids, double[] out) {
+        int user = lists.indexOf(user_id);
+        if (user < 0) {
+            fallback.simMany(user_id, other_user_ids, out);
+            return;
+        }
+        int count = lists.count(user);
+        IdIndex positions = new IdIndex(count);
+        for (int i = 0; i < count; ++i) {
+            positions.getOrAdd(lists.neighbor(user, i));
+        }
+        for (int i = 0; i < other_user_ids.length; ++i) {
+            int pos = positions.get(other_user_ids[i]);
+            out[i] = pos >= 0 ? lists.sim(user, pos) : 0d;
+        }
+    }
+
+    /**
+     * Build the graph with the K most similar users of every user in ratingMatrix,
+     * and write it to file, stamped with source (the ratings file ratingMatrix was
+     * loaded from, if not null). Users are processed in parallel, so similarity must
+     * be safe to use from several threads.
+     */
+    public static void build(RatingMatrix ratingMatrix, Similarity similarity, int k, Path file, Path source) throws IOException {
+        int numUsers = ratingMatrix.numUsers();
+        if (similarity instanceof CosineSimilarity cosine) {
+            /* Fill the length cache before it is shared between threads. */
+            for (int user = 0; user < numUsers; ++user) {
+                cosine.length(ratingMatrix.getUserId(user), CosineSimilarity.Metric.EUCLIDEAN);
+            }
+        }
+        var selector = new NeighborSelector(ratingMatrix, similarity, k, 1, Double.NEGATIVE_INFINITY);
+        int[] userIds = new int[numUsers];
+        int[][] neighborIds = new int[numUsers][];
+        double[][] simScores = new double[numUsers][];
+        IntStream.range(0, numUsers).parallel().forEach(user -> {
+            userIds[user] = ratingMatrix.getUserId(user);
+            var neighbors = selector.select(userIds[user], coRaters(ratingMatrix, user));
+            neighborIds[user] = neighbors.userIds();
+            simScores[user] = neighbors.simScores();
+        });
+        NeighborLists.write(file, MAGIC, k, userIds, neighborIds, simScores, source);
+    }
+
+    /**
+     * User id's of all other users who have rated a book in common with user (index).
+     */
+    static int[] coRaters(RatingMatrix ratingMatrix, int user) {
+        IdIndex others = new IdIndex();
+        int size = ratingMatrix.rowSize(user);
+        for (int i = 0; i < size; ++i) {
+            int book = ratingMatrix.rowBook(user, i);
+            int columnSize = ratingMatrix.columnSize(book);
+            for (int c = 0; c < columnSize; ++c) {
+                int other = ratingMatrix.columnUser(book, c);
+                if (other != user) {
+                    others.getOrAdd(other);
+                }
+            }
+        }
+        int[] ids = new int[others.size()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = ratingMatrix.getUserId(others.getId(i));
+        }
+        return ids;
+    }
+
+
+    /**
+     * Build the neighbor graph (./neighbors.graph, or the file given as first
+     * argument) from ratings (./ratings.json, or the second argument), with K
+     * neighbors per user (50, or the third argument).
+     * With --check as only argument, test the graph on random ratings instead.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 1 && args[0].equals("--check")) {
+            check();
+            return;
+        }
+        Path file = Path.of(args.length > 0 ? args[0] : "./neighbors.graph");
+        Path source = Path.of(args.length > 1 ? args[1] : "./ratings.json");
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        long startTime = System.currentTimeMillis();
+        var ratingMatrix = source.toString().endsWith(".ndjson")
+                ? RatingsLoader.loadNdjson(source, Runtime.getRuntime().availableProcessors())
+                : RatingsLoader.loadJson(source);
+        build(ratingMatrix, new CosineSimilarity(ratingMatrix), k, file, source);
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        System.out.printf("Wrote %d nearest neighbors of %d users to %s in %.3f seconds%n",
+                k, ratingMatrix.numUsers(), file, elapsedTime / 1000.0);
+    }
+
+    /**
+     * Test that the graph holds the top K of every user among all co-raters,
+     * that it reads back from its file unchanged, and that a stale graph is refused.
+     */
+    private static void check() throws IOException {
+        var matrix = new RatingMatrix();
+        var random = new java.util.Random(42);
+        for (int user_id = 0; user_id < 200; ++user_id) {
+            for (int n = 0; n < 20; ++n) {
+                matrix.put(3 * user_id, random.nextInt(300), 1 + random.nextInt(5));
+            }
+        }
+        var cosine = new CosineSimilarity(matrix);
+        int k = 10;
+        Path file = Files.createTempFile("neighbors", ".graph");
+        Path source = Files.createTempFile("ratings", ".json");
+        try {
+            Files.writeString(source, "[]");
+            build(matrix, cosine, k, file, source);
+            var graph = open(file, source, cosine);
+            boolean topK = true;
+            boolean readBack = true;
+            for (int user = 0; user < matrix.numUsers(); ++user) {
+                int user_id = matrix.getUserId(user);
+                int[] others = coRaters(matrix, user);
+                double[] exact = new double[others.length];
+                cosine.simMany(user_id, others, exact);
+                Arrays.sort(exact);
+                var neighbors = graph.neighbors(user_id);
+                topK &= graph.contains(user_id) && neighbors.size() == Math.min(k, exact.length);
+                /* Ties may be listed in either order, their similarities may not. Similarities are stored as floats. */
+                for (int i = 0; topK && i < neighbors.size(); ++i) {
+                    topK = neighbors.simScores()[i] == (float) exact[exact.length - 1 - i];
+                }
+                for (int i = 0; readBack && i < neighbors.size(); ++i) {
+                    int other_id = neighbors.userIds()[i];
+                    readBack = neighbors.simScores()[i] == (float) cosine.sim(user_id, other_id)
+                            && graph.sim(user_id, other_id) == neighbors.simScores()[i];
+                }
+            }
+            System.out.println(topK);
+            System.out.println(readBack);
+            System.out.println(!graph.contains(1) && graph.neighbors(1).size() == 0);
+
+            /* A graph built from other ratings is refused. */
+            Files.writeString(source, "[ ]");
+            try {
+                open(file, source, cosine);
+                System.out.println(false);
+            } catch (IOException e) {
+                System.out.println(e.getMessage().contains("stale"));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(source);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package similarity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Fixed-width lists of (neighbor id, similarity) per id, stored in a
+ * memory-mapped file. Used for user and book neighbors.
+ *
+ * Layout (little endian):
+ *
+ *   header      magic, version, #ids, K, source size, source modification time
+ *   ids         int[#ids]      ascending
+ *   counts      int[#ids]      length of each list (at most K)
+ *   neighbors   int[#ids * K]  neighbor id's, by decreasing similarity
+ *   sims        float[#ids * K]
+ */
+class NeighborLists {
+    public static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+
+    private final int size;
+    private final int k;
+    private final IntBuffer ids;
+    private final IntBuffer counts;
+    private final IntBuffer neighbors;
+    private final FloatBuffer sims;
+
+    private NeighborLists(MappedByteBuffer buffer, int size, int k) {
+        this.size = size;
+        this.k = k;
+        int pos = HEADER_SIZE;
+        ids = buffer.slice(pos, 4 * size).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        pos += 4 * size;
+        counts = buffer.slice(pos, 4 * size).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        pos += 4 * size;
+        neighbors = buffer.slice(pos, 4 * size * k).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        pos += 4 * size * k;
+        sims = buffer.slice(pos, 4 * size * k).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    /**
+     * Map lists from file, which must have been written with the same magic.
+     * If source is not null, the lists must have been built from the current
+     * version of that file (see RatingSnapshot).
+     */
+    static NeighborLists open(Path file, int magic, Path source) throws IOException {
+        MappedByteBuffer buffer;
+        int size;
+        int k;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE || fileSize > Integer.MAX_VALUE) {
+                throw new IOException("Invalid neighbor list size " + fileSize + " of " + file);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Neighbor list " + file + " is truncated");
+                }
+            }
+            if (header.getInt(0) != magic || header.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a neighbor list of version " + VERSION);
+            }
+            size = header.getInt(8);
+            k = header.getInt(12);
+            if (size < 0 || k < 0 || fileSize != fileSize(size, k)) {
+                throw new IOException("Neighbor list " + file + " is truncated");
+            }
+            if (source != null) {
+                long[] stamp = RatingSnapshot.sourceStamp(source);
+                if (header.getLong(16) != stamp[0] || header.getLong(24) != stamp[1]) {
+                    throw new IOException("Neighbor list " + file + " is stale with respect to " + source);
+                }
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        }
+        return new NeighborLists(buffer, size, k);
+    }
+
+    /**
+     * Write the lists neighborIds[i], sims[i] (each at most k long) of ids[i] to file,
+     * stamped with the size and modification time of source (if not null).
+     * The file is replaced atomically.
+     */
+    static void write(Path file, int magic, int k, int[] ids, int[][] neighborIds, double[][] sims, Path source) throws IOException {
+        int size = ids.length;
+        if (fileSize(size, k) > Integer.MAX_VALUE) {
+            throw new IOException("Neighbor list too large: " + size + " ids, K = " + k);
+        }
+        long[] keys = new long[size];
+        for (int i = 0; i < size; ++i) {
+            keys[i] = ((long) ids[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        long[] stamp = source != null ? RatingSnapshot.sourceStamp(source) : new long[2];
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(size, k));
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(magic).putInt(VERSION).putInt(size).putInt(k).putLong(stamp[0]).putLong(stamp[1]);
+            for (long key : keys) {
+                buffer.putInt(ids[(int) key]);
+            }
+            for (long key : keys) {
+                buffer.putInt(Math.min(k, neighborIds[(int) key].length));
+            }
+            for (long key : keys) {
+                int[] list = neighborIds[(int) key];
+                for (int i = 0; i < k; ++i) {
+                    buffer.putInt(i < list.length ? list[i] : 0);
+                }
+            }
+            for (long key : keys) {
+                double[] list = sims[(int) key];
+                for (int i = 0; i < k; ++i) {
+                    buffer.putFloat(i < list.length ? (float) list[i] : 0f);
+                }
+            }
+            buffer.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Position of id, or -1 if it has no list.
+     */
+    int indexOf(int id) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int value = ids.get(mid);
+            if (value < id) {
+                lo = mid + 1;
+            } else if (value > id) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    int count(int index) {
+        return counts.get(index);
+    }
+
+    int neighbor(int index, int i) {
+        return neighbors.get(index * k + i);
+    }
+
+    float sim(int index, int i) {
+        return sims.get(index * k + i);
+    }
+
+    private static long fileSize(int size, int k) {
+        return HEADER_SIZE + 8L * size + 8L * size * k;
+    }
+}
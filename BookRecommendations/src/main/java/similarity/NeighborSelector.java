@@ -0,0 +1,249 @@
+package similarity;
+
+import java.util.Arrays;
+
+/**
+ * Select the neighbors of a user among a set of candidate users,
+ * keeping at most topK users by similarity who have rated at least
+ * minCoRated of the same books and have similarity at least minSimilarity.
+ *
+ * For the default (euclidean) CosineSimilarity, an upper bound on the
+ * similarity of each candidate is computed from the books it has rated
+ * in common with the user (Cauchy-Schwarz over the co-rated books,
+ * which is never looser than the bound from the lengths alone).
+ * Candidates are then visited by decreasing bound, and the search stops
+ * once no remaining candidate can enter the top K, so full similarities
+ * are only computed for a few candidates.
+ */
+public class NeighborSelector {
+    private final RatingMatrix ratingMatrix;
+    private final Similarity similarity;
+    private final int topK;
+    private final int minCoRated;
+    private final double minSimilarity;
+
+    /**
+     * Selected neighbors, ordered by decreasing similarity.
+     */
+    public record Neighbors(int[] userIds, double[] simScores) {
+        public int size() {
+            return userIds.length;
+        }
+    }
+
+    public NeighborSelector(RatingMatrix ratingMatrix, Similarity similarity, int topK, int minCoRated, double minSimilarity) {
+        this.ratingMatrix = ratingMatrix;
+        this.similarity = similarity;
+        this.topK = topK;
+        this.minCoRated = minCoRated;
+        this.minSimilarity = minSimilarity;
+    }
+
+    /**
+     * Select neighbors of user among candidate_ids (which should not contain user).
+     */
+    public Neighbors select(int user_id, int[] candidate_ids) {
+        int user = ratingMatrix.getUserIndex(user_id);
+        if (user < 0 || topK <= 0) {
+            return new Neighbors(new int[0], new double[0]);
+        }
+
+        /* Slots for candidates by dense user index. */
+        IdIndex slots = new IdIndex(candidate_ids.length);
+        for (int candidate_id : candidate_ids) {
+            int candidate = ratingMatrix.getUserIndex(candidate_id);
+            if (candidate >= 0 && candidate != user) {
+                slots.getOrAdd(candidate);
+            }
+        }
+        int numCandidates = slots.size();
+
+        /* Walk the users of each book rated by user, counting co-rated books
+         * and summing squared ratings over them for each candidate. */
+        int[] coRated = new int[numCandidates];
+        double[] userSquares = new double[numCandidates];
+        double[] candidateSquares = new double[numCandidates];
+        int size = ratingMatrix.rowSize(user);
+        for (int k = 0; k < size; ++k) {
+            int book = ratingMatrix.rowBook(user, k);
+            double rating = ratingMatrix.rowRating(user, k);
+            int columnSize = ratingMatrix.columnSize(book);
+            for (int c = 0; c < columnSize; ++c) {
+                int slot = slots.get(ratingMatrix.columnUser(book, c));
+                if (slot >= 0) {
+                    double other = ratingMatrix.columnRating(book, c);
+                    ++coRated[slot];
+                    userSquares[slot] += rating * rating;
+                    candidateSquares[slot] += other * other;
+                }
+            }
+        }
+
+        /* Candidates passing minCoRated, keyed by upper bound for sorting. */
+        CosineSimilarity cosine = similarity instanceof CosineSimilarity c ? c : null;
+        double userLength = cosine != null ? cosine.length(user_id, CosineSimilarity.Metric.EUCLIDEAN) : 0d;
+        long[] keys = new long[numCandidates];
+        int numKeys = 0;
+        for (int slot = 0; slot < numCandidates; ++slot) {
+            /* Without co-rated books the similarity is 0, so they are never neighbors. */
+            if (coRated[slot] < Math.max(1, minCoRated)) {
+                continue;
+            }
+            float bound = Float.POSITIVE_INFINITY;
+            if (cosine != null) {
+                double candidateLength = cosine.length(ratingMatrix.getUserId(slots.getId(slot)), CosineSimilarity.Metric.EUCLIDEAN);
+                double dotBound = Math.sqrt(userSquares[slot] * candidateSquares[slot]);
+                bound = Math.nextUp((float) (dotBound / (userLength * candidateLength)));
+                if (Float.isNaN(bound)) {
+                    bound = Float.POSITIVE_INFINITY;
+                }
+            }
+            /* Bounds are non-negative, so their bit patterns sort like the values. */
+            keys[numKeys++] = ((long) Float.floatToIntBits(bound) << 32) | slot;
+        }
+        Arrays.sort(keys, 0, numKeys);
+
+        /* Visit by decreasing bound, keeping the best topK in a min-heap. */
+        var heap = new TopK(Math.min(topK, numKeys));
+        for (int i = numKeys - 1; i >= 0; --i) {
+            float bound = Float.intBitsToFloat((int) (keys[i] >>> 32));
+            if (bound < minSimilarity || (heap.isFull() && bound <= heap.min())) {
+                break;
+            }
+            int candidate_id = ratingMatrix.getUserId(slots.getId((int) keys[i]));
+            double sim = similarity.sim(user_id, candidate_id);
+            if (sim >= minSimilarity) {
+                heap.offer(candidate_id, sim);
+            }
+        }
+        return heap.toNeighbors();
+    }
+
+    /**
+     * Bounded min-heap of (id, similarity), keeping the largest similarities.
+     */
+    static class TopK {
+        private final int[] ids;
+        private final double[] sims;
+        private int size = 0;
+
+        TopK(int capacity) {
+            ids = new int[capacity];
+            sims = new double[capacity];
+        }
+
+        boolean isFull() {
+            return size == ids.length;
+        }
+
+        double min() {
+            return sims[0];
+        }
+
+        void offer(int id, double sim) {
+            if (!isFull()) {
+                /* Sift up. */
+                int i = size++;
+                while (i > 0 && sims[(i - 1) / 2] > sim) {
+                    ids[i] = ids[(i - 1) / 2];
+                    sims[i] = sims[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                ids[i] = id;
+                sims[i] = sim;
+            } else if (sim > sims[0]) {
+                /* Replace min and sift down. */
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && sims[child + 1] < sims[child]) {
+                        ++child;
+                    }
+                    if (sims[child] >= sim) {
+                        break;
+                    }
+                    ids[i] = ids[child];
+                    sims[i] = sims[child];
+                    i = child;
+                }
+                ids[i] = id;
+                sims[i] = sim;
+            }
+        }
+
+        /**
+         * Sort the kept entries by decreasing similarity, after which no more may be offered.
+         */
+        void sort() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; ++i) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(sims[b], sims[a]));
+            int[] sortedIds = new int[size];
+            double[] sortedSims = new double[size];
+            for (int i = 0; i < size; ++i) {
+                sortedIds[i] = ids[order[i]];
+                sortedSims[i] = sims[order[i]];
+            }
+            System.arraycopy(sortedIds, 0, ids, 0, size);
+            System.arraycopy(sortedSims, 0, sims, 0, size);
+        }
+
+        int[] ids() {
+            return Arrays.copyOf(ids, size);
+        }
+
+        double[] sims() {
+            return Arrays.copyOf(sims, size);
+        }
+
+        Neighbors toNeighbors() {
+            sort();
+            return new Neighbors(ids(), sims());
+        }
+    }
+
+
+    /**
+     * Test that selection with bounds finds the exact top K.
+     */
+    public static void main(String[] args) {
+        var matrix = new RatingMatrix();
+        var random = new java.util.Random(42);
+        for (int user_id = 0; user_id < 300; ++user_id) {
+            for (int n = 0; n < 40; ++n) {
+                matrix.put(user_id, random.nextInt(400), 1 + random.nextInt(5));
+            }
+        }
+        var cosine = new CosineSimilarity(matrix);
+        int[] candidates = new int[299];
+        for (int i = 0; i < candidates.length; ++i) {
+            candidates[i] = i + 1;
+        }
+
+        int k = 10;
+        var neighbors = new NeighborSelector(matrix, cosine, k, 1, 0d).select(0, candidates);
+        double[] exact = new double[candidates.length];
+        cosine.simMany(0, candidates, exact);
+        Arrays.sort(exact);
+        boolean equal = neighbors.size() == k;
+        for (int i = 0; i < k && equal; ++i) {
+            equal = neighbors.simScores()[i] == exact[exact.length - 1 - i];
+        }
+        System.out.println(equal);
+
+        /* Candidates below minCoRated should never be selected. */
+        var strict = new NeighborSelector(matrix, cosine, 1000, 5, 0d).select(0, candidates);
+        boolean coRated = true;
+        for (int user_id : strict.userIds()) {
+            var common = new java.util.HashSet<>(matrix.getBooksFromUser(0));
+            common.retainAll(matrix.getBooksFromUser(user_id));
+            coRated &= common.size() >= 5;
+        }
+        System.out.println(coRated);
+    }
+}
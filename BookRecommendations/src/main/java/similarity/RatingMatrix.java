@@ -1,13 +1,23 @@
 package similarity;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 
 /**
@@ -18,54 +28,362 @@ import java.util.TreeMap;
  * and columns book id's. Entries are 
  * rating of a book by a user.
  * 
- * Internal representation is based on maps since the 
- * matrix will be very sparse in practice.
+ * Internal representation is compressed sparse rows (CSR) since the 
+ * matrix will be very sparse in practice. User and book id's are 
+ * remapped to dense indices, and each row stores the book indices 
+ * of the user in ascending order together with the ratings as 
+ * primitive arrays. A matching transpose (CSC) stores the users 
+ * of each book.
+ * 
+ * A matrix can also be opened from a RatingSnapshot, in which case 
+ * reads are served from the mapped file, or compacted into compressed 
+ * rows and columns (see compact). Rows and columns changed with put 
+ * afterwards are copied back to primitive arrays first.
  */
 public class RatingMatrix {
-    /* Matrix is internally represented as mappings from each user id
-     * to an order mapping (by book ids ascendingly) to the rating. */
-    private Map<Integer,SortedMap<Integer,Double>> userToBookScore = new HashMap<>();
-    private Map<Integer,Set<Integer>> bookToUsers = new HashMap<>();
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int[] EMPTY_INDICES = new int[0];
+    private static final float[] EMPTY_RATINGS = new float[0];
+
+    /* Snapshot holding the first baseUsers users and baseBooks books, or null. */
+    private final RatingSnapshot snapshot;
+    private final int baseUsers;
+    private final int baseBooks;
+
+    /* Store of the rows and columns not on the heap: the snapshot, or compressed
+     * rows and columns after compact. */
+    private RatingStore store;
+
+    /* Dense indices for user and book id's not in the snapshot, offset by baseUsers/baseBooks. */
+    private final IdIndex userIndex = new IdIndex();
+    private final IdIndex bookIndex = new IdIndex();
+
+    /* Rows: for each user index, the book indices (ascending) and ratings. 
+     * Null for rows read from the store. */
+    private int[][] rowBooks;
+    private float[][] rowRatings;
+    private int[] rowSizes;
+
+    /* Columns: for each book index, the user indices (ascending) and ratings.
+     * Null for columns read from the store. */
+    private int[][] colUsers;
+    private float[][] colRatings;
+    private int[] colSizes;
+
+    /**
+     * Consumer of (id, rating) pairs, used to iterate over a row 
+     * or column without boxing.
+     */
+    @FunctionalInterface
+    public interface RatingConsumer {
+        void accept(int id, double rating);
+    }
+
+    /**
+     * Listener notified after a rating has been inserted/updated with put,
+     * e.g. to invalidate values cached per user.
+     */
+    @FunctionalInterface
+    public interface RatingListener {
+        void ratingChanged(int user_id, int book_id, double rating);
+    }
+
+    private final List<RatingListener> listeners = new ArrayList<>();
+
+
+    /**
+     * Create empty RatingMatrix.
+     */
+    public RatingMatrix() {
+        this(null);
+    }
+
+    private RatingMatrix(RatingSnapshot snapshot) {
+        this.snapshot = snapshot;
+        this.store = snapshot;
+        baseUsers = snapshot != null ? snapshot.numUsers() : 0;
+        baseBooks = snapshot != null ? snapshot.numBooks() : 0;
+        rowBooks = new int[baseUsers][];
+        rowRatings = new float[baseUsers][];
+        rowSizes = new int[baseUsers];
+        colUsers = new int[baseBooks][];
+        colRatings = new float[baseBooks][];
+        colSizes = new int[baseBooks];
+    }
+
+    /**
+     * Open RatingMatrix from a snapshot file written by RatingSnapshot.write.
+     * If source is not null, the snapshot must have been converted from the 
+     * current version of that file. Throws IOException if the snapshot is 
+     * missing, of another version, stale or truncated. Its checksum is not
+     * verified, see verifySnapshot.
+     */
+    public static RatingMatrix openSnapshot(Path file, Path source) throws IOException {
+        return new RatingMatrix(RatingSnapshot.open(file, source));
+    }
+
+    /**
+     * False if the matrix was opened from a snapshot whose checksum does not match,
+     * in which case it should be rebuilt. Reads the whole snapshot, so openSnapshot
+     * leaves this to the caller (e.g. in the background).
+     */
+    public boolean verifySnapshot() {
+        return snapshot == null || snapshot.verify();
+    }
+
+    /**
+     * Compress all rows and columns whose ratings are integers 0-7 (such as
+     * Goodreads ratings 1-5), see CompressedPostings. Book and user indices
+     * are stored as delta-encoded varints and ratings in 3 bits, instead of
+     * 4 + 4 bytes per rating in each direction. Other rows and columns are
+     * kept as primitive arrays, and rows and columns changed with put later
+     * are decompressed first.
+     *
+     * If the matrix was opened from a snapshot, its rows and columns are
+     * copied to the heap as well, so this is mainly for matrices built from
+     * ratings.
+     */
+    public void compact() {
+        int numUsers = numUsers();
+        int numBooks = numBooks();
+        boolean[] packRow = new boolean[numUsers];
+        for (int user = 0; user < numUsers; ++user) {
+            packRow[user] = true;
+            int size = rowSize(user);
+            for (int k = 0; k < size && packRow[user]; ++k) {
+                packRow[user] = CompressedPostings.canPack(rowRating(user, k));
+            }
+        }
+        boolean[] packColumn = new boolean[numBooks];
+        for (int book = 0; book < numBooks; ++book) {
+            packColumn[book] = true;
+            int size = columnSize(book);
+            for (int k = 0; k < size && packColumn[book]; ++k) {
+                packColumn[book] = CompressedPostings.canPack(columnRating(book, k));
+            }
+        }
+
+        var rows = CompressedPostings.build(numUsers, packRow, new CompressedPostings.Source() {
+            public int size(int user) { return rowSize(user); }
+            public int id(int user, int k) { return rowBook(user, k); }
+            public float rating(int user, int k) { return rowRating(user, k); }
+        });
+        var columns = CompressedPostings.build(numBooks, packColumn, new CompressedPostings.Source() {
+            public int size(int book) { return columnSize(book); }
+            public int id(int book, int k) { return columnUser(book, k); }
+            public float rating(int book, int k) { return columnRating(book, k); }
+        });
+
+        /* Rows and columns left out are moved to the heap before the store is replaced. */
+        for (int user = 0; user < numUsers; ++user) {
+            if (!packRow[user]) {
+                loadRow(user);
+            }
+        }
+        for (int book = 0; book < numBooks; ++book) {
+            if (!packColumn[book]) {
+                loadColumn(book);
+            }
+        }
+        store = new CompressedRatings(rows, columns);
+        for (int user = 0; user < numUsers; ++user) {
+            if (packRow[user]) {
+                rowBooks[user] = null;
+                rowRatings[user] = null;
+                rowSizes[user] = 0;
+            }
+        }
+        for (int book = 0; book < numBooks; ++book) {
+            if (packColumn[book]) {
+                colUsers[book] = null;
+                colRatings[book] = null;
+                colSizes[book] = 0;
+            }
+        }
+    }
 
+    /**
+     * Register listener to be notified of every rating inserted/updated.
+     */
+    public void addListener(RatingListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregister listener.
+     */
+    public void removeListener(RatingListener listener) {
+        listeners.remove(listener);
+    }
 
     /**
      * Insert/update rating for user, book pair into the matrix.
      */
     public void put(int user_id, int book_id, double rating) {
-        var bookScores = userToBookScore.get(user_id);
-        if (bookScores == null) {
-            bookScores = new TreeMap<>();
-            userToBookScore.put(user_id, bookScores);
+        insert(user_id, book_id, rating);
+        for (var listener : listeners) {
+            listener.ratingChanged(user_id, book_id, rating);
+        }
+    }
+
+    private void insert(int user_id, int book_id, double rating) {
+        int user = addUser(user_id);
+        int book = addBook(book_id);
+        ensureRowCapacity(user + 1);
+        ensureColumnCapacity(book + 1);
+        loadRow(user);
+        loadColumn(book);
+
+        int size = rowSizes[user];
+        int pos = Arrays.binarySearch(rowBooks[user], 0, size, book);
+        if (pos >= 0) {
+            /* Update existing entry in both row and column. */
+            rowRatings[user][pos] = (float) rating;
+            int colPos = Arrays.binarySearch(colUsers[book], 0, colSizes[book], user);
+            colRatings[book][colPos] = (float) rating;
+            return;
         }
-        bookScores.put(book_id, rating);
+        pos = -pos - 1;
+        if (size == rowBooks[user].length) {
+            int capacity = Math.max(4, size * 2);
+            rowBooks[user] = Arrays.copyOf(rowBooks[user], capacity);
+            rowRatings[user] = Arrays.copyOf(rowRatings[user], capacity);
+        }
+        System.arraycopy(rowBooks[user], pos, rowBooks[user], pos + 1, size - pos);
+        System.arraycopy(rowRatings[user], pos, rowRatings[user], pos + 1, size - pos);
+        rowBooks[user][pos] = book;
+        rowRatings[user][pos] = (float) rating;
+        rowSizes[user] = size + 1;
 
-        var bookToUserSet = bookToUsers.get(book_id);
-        if (bookToUserSet == null) {
-            bookToUserSet = new HashSet<>();
-            bookToUsers.put(book_id, bookToUserSet);
+        size = colSizes[book];
+        int colPos = -Arrays.binarySearch(colUsers[book], 0, size, user) - 1;
+        if (size == colUsers[book].length) {
+            int capacity = Math.max(4, size * 2);
+            colUsers[book] = Arrays.copyOf(colUsers[book], capacity);
+            colRatings[book] = Arrays.copyOf(colRatings[book], capacity);
         }
-        bookToUserSet.add(user_id);
+        System.arraycopy(colUsers[book], colPos, colUsers[book], colPos + 1, size - colPos);
+        System.arraycopy(colRatings[book], colPos, colRatings[book], colPos + 1, size - colPos);
+        colUsers[book][colPos] = user;
+        colRatings[book][colPos] = (float) rating;
+        colSizes[book] = size + 1;
     } 
 
+    /**
+     * Insert/update count ratings given as parallel arrays of user id's, 
+     * book id's and ratings. A later entry for the same user, book pair
+     * overwrites an earlier one, as with put.
+     * 
+     * If the matrix is empty, rows and columns are built in one pass 
+     * with exactly sized arrays instead of growing them entry by entry.
+     */
+    public void putAll(int[] user_ids, int[] book_ids, float[] ratings, int count) {
+        if (numUsers() > 0 || numBooks() > 0) {
+            for (int i = 0; i < count; ++i) {
+                put(user_ids[i], book_ids[i], ratings[i]);
+            }
+            return;
+        }
+
+        /* Map id's to dense indices and count entries per row. */
+        int[] users = new int[count];
+        int[] books = new int[count];
+        for (int i = 0; i < count; ++i) {
+            users[i] = addUser(user_ids[i]);
+            books[i] = addBook(book_ids[i]);
+        }
+        int numUsers = numUsers();
+        int numBooks = numBooks();
+        ensureRowCapacity(numUsers);
+        ensureColumnCapacity(numBooks);
+        int[] rowStart = new int[numUsers + 1];
+        for (int i = 0; i < count; ++i) {
+            ++rowStart[users[i] + 1];
+        }
+        for (int user = 0; user < numUsers; ++user) {
+            rowStart[user + 1] += rowStart[user];
+        }
+
+        /* Bucket entries by row as (book index, entry number) keys, so 
+         * sorting a row orders it by book and keeps duplicates in input order. */
+        long[] keys = new long[count];
+        int[] fill = Arrays.copyOf(rowStart, numUsers);
+        for (int i = 0; i < count; ++i) {
+            keys[fill[users[i]]++] = ((long) books[i] << 32) | i;
+        }
+
+        for (int user = 0; user < numUsers; ++user) {
+            int from = rowStart[user];
+            int to = rowStart[user + 1];
+            Arrays.sort(keys, from, to);
+            int[] rowB = new int[to - from];
+            float[] rowR = new float[to - from];
+            int size = 0;
+            for (int k = from; k < to; ++k) {
+                int book = (int) (keys[k] >>> 32);
+                float rating = ratings[(int) keys[k]];
+                if (size > 0 && rowB[size - 1] == book) {
+                    rowR[size - 1] = rating;
+                } else {
+                    rowB[size] = book;
+                    rowR[size++] = rating;
+                }
+            }
+            rowBooks[user] = size == rowB.length ? rowB : Arrays.copyOf(rowB, size);
+            rowRatings[user] = size == rowR.length ? rowR : Arrays.copyOf(rowR, size);
+            rowSizes[user] = size;
+            for (int k = 0; k < size; ++k) {
+                ++colSizes[rowB[k]];
+            }
+        }
+
+        /* Transpose. Users are visited in ascending order so columns come out sorted. */
+        for (int book = 0; book < numBooks; ++book) {
+            colUsers[book] = new int[colSizes[book]];
+            colRatings[book] = new float[colSizes[book]];
+            colSizes[book] = 0;
+        }
+        for (int user = 0; user < numUsers; ++user) {
+            for (int k = 0; k < rowSizes[user]; ++k) {
+                int book = rowBooks[user][k];
+                colUsers[book][colSizes[book]] = user;
+                colRatings[book][colSizes[book]++] = rowRatings[user][k];
+            }
+        }
+
+        for (var listener : listeners) {
+            for (int i = 0; i < count; ++i) {
+                listener.ratingChanged(user_ids[i], book_ids[i], ratings[i]);
+            }
+        }
+    }
+
     /**
      * Get rating of user book pair.
+     * 0 if user has not rated book.
      */
     public double getRating(int user_id, int book_id) {
-        return userToBookScore.get(user_id).getOrDefault(book_id, 0.0);
+        int user = getUserIndex(user_id);
+        int book = getBookIndex(book_id);
+        if (user < 0 || book < 0) {
+            return 0.0;
+        }
+        int pos = rowPosition(user, book);
+        return pos >= 0 ? rowRating(user, pos) : 0.0;
     }
 
     /**
      * Return set of all user id's.
      */
     public Set<Integer> getUserIds() {
-        return userToBookScore.keySet();
+        return new IdSet(false);
     }
 
     /**
      * Return set of all book id's.
      */
     public Set<Integer> getBookIds() {
-        return bookToUsers.keySet();
+        return new IdSet(true);
     }
 
     /**
@@ -73,35 +391,560 @@ public class RatingMatrix {
      * Null if no one in matrix has rated book.
      */
     public Set<Integer> getUsersFromBook(int book_id) {
-        return bookToUsers.get(book_id);
+        int book = getBookIndex(book_id);
+        if (book < 0 || columnSize(book) == 0) {
+            return null;
+        }
+        return new LineSet(book, true);
     }
 
     /**
      * Get set of books who a user has rated.
      */
     public Set<Integer> getBooksFromUser(int user_id) {
-        return userToBookScore.get(user_id).keySet();
+        int user = getUserIndex(user_id);
+        if (user < 0) {
+            return Collections.emptySet();
+        }
+        return new LineSet(user, false);
     }
 
     /**
      * Get ratings from user.
      */
     public Collection<Double> getRatingsFromUser(int user_id) {
-        return userToBookScore.get(user_id).values();
+        final int user = getUserIndex(user_id);
+        if (user < 0) {
+            return Collections.emptyList();
+        }
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<Double> iterator() {
+                return new Iterator<>() {
+                    private int k = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return k < rowSize(user);
+                    }
+
+                    @Override
+                    public Double next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return (double) rowRating(user, k++);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return rowSize(user);
+            }
+        };
     }
 
     /**
      * Get set of book/rating key/value pair from user.
+     * Entries are ordered consistently with the dense book indices,
+     * i.e. the same order for every user.
      */
     public Set<Entry<Integer,Double>> getEntrySetFromUser(int user_id) {
-        return userToBookScore.get(user_id).entrySet();
+        final int user = getUserIndex(user_id);
+        if (user < 0) {
+            return Collections.emptySet();
+        }
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<Integer,Double>> iterator() {
+                return new Iterator<>() {
+                    private int k = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return k < rowSize(user);
+                    }
+
+                    @Override
+                    public Entry<Integer,Double> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        var entry = new SimpleImmutableEntry<>(getBookId(rowBook(user, k)), (double) rowRating(user, k));
+                        ++k;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return rowSize(user);
+            }
+        };
+    }
+
+    /**
+     * Call consumer with (book id, rating) for every book rated by user,
+     * without boxing.
+     */
+    public void forEachRating(int user_id, RatingConsumer consumer) {
+        int user = getUserIndex(user_id);
+        if (user < 0) {
+            return;
+        }
+        int size = rowSize(user);
+        for (int k = 0; k < size; ++k) {
+            consumer.accept(getBookId(rowBook(user, k)), rowRating(user, k));
+        }
+    }
+
+    /**
+     * Call consumer with (user id, rating) for every user who has rated book,
+     * without boxing.
+     */
+    public void forEachUserOfBook(int book_id, RatingConsumer consumer) {
+        int book = getBookIndex(book_id);
+        if (book < 0) {
+            return;
+        }
+        int size = columnSize(book);
+        for (int k = 0; k < size; ++k) {
+            consumer.accept(getUserId(columnUser(book, k)), columnRating(book, k));
+        }
+    }
+
+
+    /* 
+     * Index-level access. Rows and columns are addressed by dense 
+     * indices, and entry k of a row/column by position, which lets 
+     * numeric kernels merge rows without allocating.
+     */
+
+    /**
+     * Get dense index of user id, or -1 if user is not in matrix.
+     */
+    public int getUserIndex(int user_id) {
+        if (snapshot != null) {
+            int user = snapshot.getUserIndex(user_id);
+            if (user >= 0) {
+                return user;
+            }
+        }
+        int user = userIndex.get(user_id);
+        return user < 0 ? -1 : baseUsers + user;
+    }
+
+    /**
+     * Get dense index of book id, or -1 if book is not in matrix.
+     */
+    public int getBookIndex(int book_id) {
+        if (snapshot != null) {
+            int book = snapshot.getBookIndex(book_id);
+            if (book >= 0) {
+                return book;
+            }
+        }
+        int book = bookIndex.get(book_id);
+        return book < 0 ? -1 : baseBooks + book;
+    }
+
+    /**
+     * Get user id from dense user index.
+     */
+    public int getUserId(int user) {
+        return user < baseUsers ? snapshot.getUserId(user) : userIndex.getId(user - baseUsers);
+    }
+
+    /**
+     * Get book id from dense book index.
+     */
+    public int getBookId(int book) {
+        return book < baseBooks ? snapshot.getBookId(book) : bookIndex.getId(book - baseBooks);
+    }
+
+    /**
+     * Number of users (rows) in matrix.
+     */
+    public int numUsers() {
+        return baseUsers + userIndex.size();
+    }
+
+    /**
+     * Number of books (columns) in matrix.
+     */
+    public int numBooks() {
+        return baseBooks + bookIndex.size();
+    }
+
+    /**
+     * Number of ratings in row of user index.
+     */
+    public int rowSize(int user) {
+        return rowBooks[user] != null ? rowSizes[user] : store.rowSize(user);
+    }
+
+    /**
+     * Book index of entry k in row of user index. Ascending in k.
+     */
+    public int rowBook(int user, int k) {
+        int[] books = rowBooks[user];
+        return books != null ? books[k] : store.rowBook(user, k);
+    }
+
+    /**
+     * Rating of entry k in row of user index.
+     */
+    public float rowRating(int user, int k) {
+        float[] ratings = rowRatings[user];
+        return ratings != null ? ratings[k] : store.rowRating(user, k);
+    }
+
+    /**
+     * Backing array of book indices of row of user index (valid up to rowSize),
+     * or null if the row is read from the store. Not to be modified.
+     */
+    int[] rowBooksArray(int user) {
+        return rowBooks[user];
+    }
+
+    /**
+     * Backing array of ratings of row of user index (valid up to rowSize),
+     * or null if the row is read from the store. Not to be modified.
+     */
+    float[] rowRatingsArray(int user) {
+        return rowRatings[user];
+    }
+
+    /**
+     * Sequential reader of rows, which can skip ahead to a book index.
+     * Compressed rows skip whole blocks with their skip table, other rows
+     * use galloping search.
+     */
+    final class RowCursor {
+        private int user;
+        private int k;
+        private int size;
+        private CompressedPostings.Cursor packed;
+        private CompressedPostings packedRows;
+        private boolean isPacked;
+
+        /**
+         * Position cursor at the first entry of row of user index.
+         */
+        void reset(int user) {
+            this.user = user;
+            isPacked = rowBooks[user] == null && store instanceof CompressedRatings;
+            if (isPacked) {
+                /* Cursors are reused, and compact may have replaced the rows since. */
+                CompressedPostings rows = ((CompressedRatings) store).rows();
+                if (packed == null || packedRows != rows) {
+                    packed = rows.new Cursor();
+                    packedRows = rows;
+                }
+                packed.reset(user);
+            } else {
+                k = 0;
+                size = rowSize(user);
+            }
+        }
+
+        boolean valid() {
+            return isPacked ? packed.valid() : k < size;
+        }
+
+        int book() {
+            return isPacked ? packed.id() : rowBook(user, k);
+        }
+
+        float rating() {
+            return isPacked ? packed.rating() : rowRating(user, k);
+        }
+
+        void next() {
+            if (isPacked) {
+                packed.next();
+            } else {
+                ++k;
+            }
+        }
+
+        /**
+         * Move to the first entry with book index at least book (or past the end).
+         */
+        void advance(int book) {
+            if (isPacked) {
+                packed.advance(book);
+                return;
+            }
+            if (k >= size || rowBook(user, k) >= book) {
+                return;
+            }
+            /* Gallop to a bound, then binary search. */
+            int step = 1;
+            int lo = k;
+            int hi = k + step;
+            while (hi < size && rowBook(user, hi) < book) {
+                lo = hi;
+                step <<= 1;
+                hi = k + step;
+            }
+            hi = Math.min(hi, size);
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (rowBook(user, mid) < book) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            k = lo;
+        }
+    }
+
+    /**
+     * New cursor over rows of this matrix.
+     */
+    RowCursor rowCursor() {
+        return new RowCursor();
+    }
+
+    /**
+     * Number of ratings in column of book index.
+     */
+    public int columnSize(int book) {
+        return colUsers[book] != null ? colSizes[book] : store.columnSize(book);
+    }
+
+    /**
+     * User index of entry k in column of book index. Ascending in k.
+     */
+    public int columnUser(int book, int k) {
+        int[] users = colUsers[book];
+        return users != null ? users[k] : store.columnUser(book, k);
+    }
+
+    /**
+     * Rating of entry k in column of book index.
+     */
+    public float columnRating(int book, int k) {
+        float[] ratings = colRatings[book];
+        return ratings != null ? ratings[k] : store.columnRating(book, k);
+    }
+
+    /**
+     * Position of book index in row of user index, or -1.
+     */
+    private int rowPosition(int user, int book) {
+        if (rowBooks[user] != null) {
+            return Math.max(-1, Arrays.binarySearch(rowBooks[user], 0, rowSizes[user], book));
+        }
+        int lo = 0;
+        int hi = store.rowSize(user) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int value = store.rowBook(user, mid);
+            if (value < book) {
+                lo = mid + 1;
+            } else if (value > book) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Position of user index in column of book index, or -1.
+     */
+    private int columnPosition(int book, int user) {
+        if (colUsers[book] != null) {
+            return Math.max(-1, Arrays.binarySearch(colUsers[book], 0, colSizes[book], user));
+        }
+        int lo = 0;
+        int hi = store.columnSize(book) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int value = store.columnUser(book, mid);
+            if (value < user) {
+                lo = mid + 1;
+            } else if (value > user) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int addUser(int user_id) {
+        int user = getUserIndex(user_id);
+        return user >= 0 ? user : baseUsers + userIndex.getOrAdd(user_id);
+    }
+
+    private int addBook(int book_id) {
+        int book = getBookIndex(book_id);
+        return book >= 0 ? book : baseBooks + bookIndex.getOrAdd(book_id);
+    }
+
+    /**
+     * Copy row of user index from the store to the heap, if not already there.
+     */
+    private void loadRow(int user) {
+        if (rowBooks[user] == null) {
+            int size = store.rowSize(user);
+            rowBooks[user] = new int[size];
+            rowRatings[user] = new float[size];
+            for (int k = 0; k < size; ++k) {
+                rowBooks[user][k] = store.rowBook(user, k);
+                rowRatings[user][k] = store.rowRating(user, k);
+            }
+            rowSizes[user] = size;
+        }
+    }
+
+    /**
+     * Copy column of book index from the store to the heap, if not already there.
+     */
+    private void loadColumn(int book) {
+        if (colUsers[book] == null) {
+            int size = store.columnSize(book);
+            colUsers[book] = new int[size];
+            colRatings[book] = new float[size];
+            for (int k = 0; k < size; ++k) {
+                colUsers[book][k] = store.columnUser(book, k);
+                colRatings[book][k] = store.columnRating(book, k);
+            }
+            colSizes[book] = size;
+        }
+    }
+
+    private void ensureRowCapacity(int capacity) {
+        int old = rowSizes.length;
+        if (capacity > old) {
+            int grown = Math.max(capacity, Math.max(INITIAL_CAPACITY, old * 2));
+            rowBooks = Arrays.copyOf(rowBooks, grown);
+            rowRatings = Arrays.copyOf(rowRatings, grown);
+            rowSizes = Arrays.copyOf(rowSizes, grown);
+            Arrays.fill(rowBooks, old, grown, EMPTY_INDICES);
+            Arrays.fill(rowRatings, old, grown, EMPTY_RATINGS);
+        }
+    }
+
+    private void ensureColumnCapacity(int capacity) {
+        int old = colSizes.length;
+        if (capacity > old) {
+            int grown = Math.max(capacity, Math.max(INITIAL_CAPACITY, old * 2));
+            colUsers = Arrays.copyOf(colUsers, grown);
+            colRatings = Arrays.copyOf(colRatings, grown);
+            colSizes = Arrays.copyOf(colSizes, grown);
+            Arrays.fill(colUsers, old, grown, EMPTY_INDICES);
+            Arrays.fill(colRatings, old, grown, EMPTY_RATINGS);
+        }
+    }
+
+    /**
+     * Read-only set of all user (or book) id's.
+     */
+    private class IdSet extends AbstractSet<Integer> {
+        private final boolean books;
+
+        IdSet(boolean books) {
+            this.books = books;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Integer id)) {
+                return false;
+            }
+            return (books ? getBookIndex(id) : getUserIndex(id)) >= 0;
+        }
+
+        @Override
+        public Iterator<Integer> iterator() {
+            return new Iterator<>() {
+                private int k = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return k < size();
+                }
+
+                @Override
+                public Integer next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return books ? getBookId(k++) : getUserId(k++);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return books ? numBooks() : numUsers();
+        }
+    }
+
+    /**
+     * Read-only set of the book id's in a row, or user id's in a column.
+     */
+    private class LineSet extends AbstractSet<Integer> {
+        private final int line;
+        private final boolean column;
+
+        LineSet(int line, boolean column) {
+            this.line = line;
+            this.column = column;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Integer id)) {
+                return false;
+            }
+            if (column) {
+                int user = getUserIndex(id);
+                return user >= 0 && columnPosition(line, user) >= 0;
+            }
+            int book = getBookIndex(id);
+            return book >= 0 && rowPosition(line, book) >= 0;
+        }
+
+        @Override
+        public Iterator<Integer> iterator() {
+            return new Iterator<>() {
+                private int k = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return k < size();
+                }
+
+                @Override
+                public Integer next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return column ? getUserId(columnUser(line, k++)) : getBookId(rowBook(line, k++));
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return column ? columnSize(line) : rowSize(line);
+        }
     }
 
 
     /**
      * Test class.
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         var matrix = new RatingMatrix();
 
         /* Insert 3 users, each having rated 4 books out of 6 books, into the matrix. */
@@ -142,5 +985,118 @@ public class RatingMatrix {
         System.out.println(booksFromUser0.contains(3));
         System.out.println(booksFromUser0.contains(4));
         System.out.println(!booksFromUser0.contains(5));
+
+        /* Updating an entry should be visible in both rows and columns. */
+        matrix.put(2, 4, 5);
+        System.out.println(matrix.getRating(2, 4) == 5);
+        System.out.println(matrix.getRating(1, 4) == 0);
+        double[] columnSum = new double[1];
+        matrix.forEachUserOfBook(4, (user_id, rating) -> columnSum[0] += rating);
+        System.out.println(columnSum[0] == (1 - 3) + 5);
+
+        /* Large (sparse) id's are remapped to dense indices. */
+        matrix.put(164001102, 60533475, 4);
+        System.out.println(matrix.getUserIndex(164001102) == 3);
+        System.out.println(matrix.getBookIndex(60533475) == 6);
+        System.out.println(matrix.getUsersFromBook(60533475).contains(164001102));
+
+        /* A snapshot should read back the same ratings, and accept updates. */
+        Path file = Files.createTempFile("ratings", ".snapshot");
+        try {
+            RatingSnapshot.write(matrix, file, null);
+            var mapped = RatingMatrix.openSnapshot(file, null);
+            boolean equal = mapped.numUsers() == matrix.numUsers() && mapped.numBooks() == matrix.numBooks();
+            for (int user_id : matrix.getUserIds()) {
+                for (var entry : matrix.getEntrySetFromUser(user_id)) {
+                    equal &= mapped.getRating(user_id, entry.getKey()) == entry.getValue();
+                }
+            }
+            System.out.println(equal && mapped.verifySnapshot());
+            mapped.put(2, 4, 1);
+            mapped.put(7, 4, 3);
+            System.out.println(mapped.getRating(2, 4) == 1 && matrix.getRating(2, 4) == 5);
+            System.out.println(mapped.getUsersFromBook(4).containsAll(Set.of(0, 2, 7)));
+            System.out.println(mapped.getUsersFromBook(4).size() == 3);
+
+            /* A snapshot of other ratings is rejected, and so is a corrupt one if verified. */
+            Path source = Files.createTempFile("ratings", ".json");
+            try {
+                RatingMatrix.openSnapshot(file, source);
+                System.out.println(false);
+            } catch (IOException e) {
+                System.out.println(true);
+            } finally {
+                Files.deleteIfExists(source);
+            }
+            RatingSnapshot.open(file, null, true);
+            try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(new byte[] { 42 }), channel.size() - 1);
+            }
+            try {
+                RatingSnapshot.open(file, null, true);
+                System.out.println(false);
+            } catch (IOException e) {
+                var corrupt = RatingMatrix.openSnapshot(file, null);
+                System.out.println(corrupt.numUsers() == matrix.numUsers() && !corrupt.verifySnapshot());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        /* Compacted rows and columns should read back the same, and accept updates. */
+        var large = new RatingMatrix();
+        var reference = new RatingMatrix();
+        var random = new java.util.Random(3);
+        for (int n = 0; n < 50000; ++n) {
+            int user_id = random.nextInt(300);
+            int book_id = random.nextInt(5000) * 7;
+            int rating = 1 + random.nextInt(5);
+            large.put(user_id, book_id, rating);
+            reference.put(user_id, book_id, rating);
+        }
+        large.put(1000, 0, 2.5);
+        reference.put(1000, 0, 2.5);
+        large.compact();
+        boolean equal = true;
+        for (int user = 0; user < reference.numUsers(); ++user) {
+            equal &= large.rowSize(user) == reference.rowSize(user);
+            for (int k = 0; k < reference.rowSize(user) && equal; ++k) {
+                equal &= large.rowBook(user, k) == reference.rowBook(user, k) && large.rowRating(user, k) == reference.rowRating(user, k);
+            }
+        }
+        for (int book = 0; book < reference.numBooks(); ++book) {
+            equal &= large.columnSize(book) == reference.columnSize(book);
+            for (int k = 0; k < reference.columnSize(book) && equal; ++k) {
+                equal &= large.columnUser(book, k) == reference.columnUser(book, k) && large.columnRating(book, k) == reference.columnRating(book, k);
+            }
+        }
+        System.out.println(equal);
+        large.put(5, 7, 3);
+        reference.put(5, 7, 3);
+        System.out.println(large.getRating(5, 7) == 3 && large.getUsersFromBook(7).equals(reference.getUsersFromBook(7)));
+
+        /* Cursors should skip to the same entries on compressed and plain rows. */
+        boolean skipped = true;
+        var packedCursor = large.rowCursor();
+        var plainCursor = reference.rowCursor();
+        for (int user = 0; user < 300; ++user) {
+            packedCursor.reset(user);
+            plainCursor.reset(user);
+            for (int target = 0; target < 5000; target += 1 + random.nextInt(200)) {
+                packedCursor.advance(target);
+                plainCursor.advance(target);
+                skipped &= packedCursor.valid() == plainCursor.valid();
+                if (packedCursor.valid() && plainCursor.valid()) {
+                    skipped &= packedCursor.book() == plainCursor.book() && packedCursor.rating() == plainCursor.rating();
+                }
+            }
+        }
+        System.out.println(skipped);
+        long numRatings = 0;
+        for (int user = 0; user < large.numUsers(); ++user) {
+            numRatings += large.rowSize(user);
+        }
+        System.out.printf("compressed %.2f bytes per rating (rows and columns), plain arrays 16%n",
+                (double) ((CompressedRatings) large.store).sizeInBytes() / numRatings);
     }
 }
@@ -0,0 +1,396 @@
+package similarity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary snapshot of a RatingMatrix, read through a memory mapping
+ * so a matrix can be opened without parsing or copying ratings to the heap.
+ *
+ * Layout (little endian) is a fixed size header followed by int/float sections:
+ *
+ *   header        magic, version, #users, #books, #ratings, source size,
+ *                 source modification time, CRC32C of everything after the header
+ *   userIds       int[#users]      ascending, position is the dense user index
+ *   bookIds       int[#books]      ascending, position is the dense book index
+ *   rowOffsets    int[#users + 1]  start of each user's row
+ *   rowBooks      int[#ratings]    book indices, ascending within a row
+ *   rowRatings    float[#ratings]
+ *   colOffsets    int[#books + 1]  start of each book's column
+ *   colUsers      int[#ratings]    user indices, ascending within a column
+ *   colRatings    float[#ratings]
+ *
+ * The source size and modification time identify the ratings file the
+ * snapshot was converted from, so a stale snapshot can be detected.
+ * The header is checked before the file is mapped, so a rejected snapshot
+ * is not left mapped while it is being replaced (which Windows refuses).
+ * Since the file is mapped as a single buffer it is limited to 2 GB.
+ */
+public class RatingSnapshot implements RatingStore {
+    private static final int MAGIC = 0x4e534d52; // "RMSN"
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    private final IntBuffer userIds;
+    private final IntBuffer bookIds;
+    private final IntBuffer rowOffsets;
+    private final IntBuffer rowBooks;
+    private final FloatBuffer rowRatings;
+    private final IntBuffer colOffsets;
+    private final IntBuffer colUsers;
+    private final FloatBuffer colRatings;
+    private final int numUsers;
+    private final int numBooks;
+    private final ByteBuffer buffer;
+    private final long crc;
+
+    private RatingSnapshot(ByteBuffer buffer, int numUsers, int numBooks, int numRatings, long crc) {
+        this.numUsers = numUsers;
+        this.numBooks = numBooks;
+        this.buffer = buffer;
+        this.crc = crc;
+        int pos = HEADER_SIZE;
+        userIds = intSection(buffer, pos, numUsers);
+        pos += 4 * numUsers;
+        bookIds = intSection(buffer, pos, numBooks);
+        pos += 4 * numBooks;
+        rowOffsets = intSection(buffer, pos, numUsers + 1);
+        pos += 4 * (numUsers + 1);
+        rowBooks = intSection(buffer, pos, numRatings);
+        pos += 4 * numRatings;
+        rowRatings = floatSection(buffer, pos, numRatings);
+        pos += 4 * numRatings;
+        colOffsets = intSection(buffer, pos, numBooks + 1);
+        pos += 4 * (numBooks + 1);
+        colUsers = intSection(buffer, pos, numRatings);
+        pos += 4 * numRatings;
+        colRatings = floatSection(buffer, pos, numRatings);
+    }
+
+    /**
+     * Open and validate a snapshot, see open(file, source, verify). The
+     * checksum is not verified, since that would read the whole file.
+     */
+    static RatingSnapshot open(Path file, Path source) throws IOException {
+        return open(file, source, false);
+    }
+
+    /**
+     * Open and validate a snapshot. If source is not null, the snapshot
+     * must have been converted from the current version of that file.
+     * If verify, the checksum of the whole snapshot is verified as well.
+     * Throws IOException if the snapshot is missing, of another version,
+     * stale or corrupt, in which case it should be rebuilt.
+     */
+    static RatingSnapshot open(Path file, Path source, boolean verify) throws IOException {
+        MappedByteBuffer buffer;
+        int numUsers;
+        int numBooks;
+        long numRatings;
+        long crc;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid snapshot size " + size + " of " + file);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Snapshot " + file + " is truncated");
+                }
+            }
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a rating snapshot");
+            }
+            int version = header.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("Snapshot " + file + " has version " + version + ", expected " + VERSION);
+            }
+            numUsers = header.getInt(8);
+            numBooks = header.getInt(12);
+            numRatings = header.getLong(16);
+            if (numUsers < 0 || numBooks < 0 || numRatings < 0
+                    || size != fileSize(numUsers, numBooks, numRatings)) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+            if (source != null) {
+                long[] stamp = sourceStamp(source);
+                if (header.getLong(24) != stamp[0] || header.getLong(32) != stamp[1]) {
+                    throw new IOException("Snapshot " + file + " is stale with respect to " + source);
+                }
+            }
+            crc = header.getLong(40);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        var snapshot = new RatingSnapshot(buffer, numUsers, numBooks, (int) numRatings, crc);
+        if (verify && !snapshot.verify()) {
+            throw new IOException("Snapshot " + file + " failed checksum");
+        }
+        return snapshot;
+    }
+
+    /**
+     * True if the checksum in the header matches the sections. This reads the
+     * whole file, so it takes as long as reading the snapshot from disk.
+     */
+    boolean verify() {
+        return crc == checksum(buffer);
+    }
+
+    /**
+     * Write matrix as a snapshot to file, stamped with the size and
+     * modification time of source (if not null). The file is replaced
+     * atomically, so a reader never sees a half written snapshot.
+     */
+    public static void write(RatingMatrix matrix, Path file, Path source) throws IOException {
+        int numUsers = matrix.numUsers();
+        int numBooks = matrix.numBooks();
+        long numRatings = 0;
+        for (int user = 0; user < numUsers; ++user) {
+            numRatings += matrix.rowSize(user);
+        }
+        long size = fileSize(numUsers, numBooks, numRatings);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Rating matrix too large for snapshot: " + size + " bytes");
+        }
+
+        /* Snapshot indices are in ascending id order, map from the matrix' indices. */
+        int[] userOrder = sortedIndices(numUsers, matrix::getUserId);
+        int[] bookOrder = sortedIndices(numBooks, matrix::getBookId);
+        int[] newBookIndex = new int[numBooks];
+        for (int i = 0; i < numBooks; ++i) {
+            newBookIndex[bookOrder[i]] = i;
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int nr = (int) numRatings;
+            int pos = HEADER_SIZE;
+            IntBuffer userIds = intSection(buffer, pos, numUsers);
+            pos += 4 * numUsers;
+            IntBuffer bookIds = intSection(buffer, pos, numBooks);
+            pos += 4 * numBooks;
+            IntBuffer rowOffsets = intSection(buffer, pos, numUsers + 1);
+            pos += 4 * (numUsers + 1);
+            IntBuffer rowBooks = intSection(buffer, pos, nr);
+            pos += 4 * nr;
+            FloatBuffer rowRatings = floatSection(buffer, pos, nr);
+            pos += 4 * nr;
+            IntBuffer colOffsets = intSection(buffer, pos, numBooks + 1);
+            pos += 4 * (numBooks + 1);
+            IntBuffer colUsers = intSection(buffer, pos, nr);
+            pos += 4 * nr;
+            FloatBuffer colRatings = floatSection(buffer, pos, nr);
+
+            for (int i = 0; i < numUsers; ++i) {
+                userIds.put(i, matrix.getUserId(userOrder[i]));
+            }
+            int[] colSizes = new int[numBooks + 1];
+            for (int i = 0; i < numBooks; ++i) {
+                bookIds.put(i, matrix.getBookId(bookOrder[i]));
+            }
+
+            /* Rows, re-sorted by the new book indices. */
+            int offset = 0;
+            long[] keys = new long[0];
+            for (int i = 0; i < numUsers; ++i) {
+                int user = userOrder[i];
+                int rowSize = matrix.rowSize(user);
+                rowOffsets.put(i, offset);
+                if (keys.length < rowSize) {
+                    keys = new long[rowSize];
+                }
+                for (int k = 0; k < rowSize; ++k) {
+                    keys[k] = ((long) newBookIndex[matrix.rowBook(user, k)] << 32) | k;
+                }
+                Arrays.sort(keys, 0, rowSize);
+                for (int k = 0; k < rowSize; ++k) {
+                    int book = (int) (keys[k] >>> 32);
+                    rowBooks.put(offset + k, book);
+                    rowRatings.put(offset + k, matrix.rowRating(user, (int) keys[k]));
+                    ++colSizes[book + 1];
+                }
+                offset += rowSize;
+            }
+            rowOffsets.put(numUsers, offset);
+
+            /* Columns, transposed from rows in ascending user order. */
+            for (int book = 0; book < numBooks; ++book) {
+                colSizes[book + 1] += colSizes[book];
+                colOffsets.put(book, colSizes[book]);
+            }
+            colOffsets.put(numBooks, colSizes[numBooks]);
+            for (int i = 0; i < numUsers; ++i) {
+                for (int k = rowOffsets.get(i); k < rowOffsets.get(i + 1); ++k) {
+                    int book = rowBooks.get(k);
+                    int at = colSizes[book]++;
+                    colUsers.put(at, i);
+                    colRatings.put(at, rowRatings.get(k));
+                }
+            }
+
+            long[] stamp = source != null ? sourceStamp(source) : new long[2];
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, numUsers);
+            buffer.putInt(12, numBooks);
+            buffer.putLong(16, numRatings);
+            buffer.putLong(24, stamp[0]);
+            buffer.putLong(32, stamp[1]);
+            buffer.putLong(40, checksum(buffer));
+            buffer.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    int numUsers() {
+        return numUsers;
+    }
+
+    int numBooks() {
+        return numBooks;
+    }
+
+    /**
+     * Dense index of user id, or -1 if not in snapshot.
+     */
+    int getUserIndex(int user_id) {
+        return search(userIds, 0, numUsers, user_id);
+    }
+
+    /**
+     * Dense index of book id, or -1 if not in snapshot.
+     */
+    int getBookIndex(int book_id) {
+        return search(bookIds, 0, numBooks, book_id);
+    }
+
+    int getUserId(int user) {
+        return userIds.get(user);
+    }
+
+    int getBookId(int book) {
+        return bookIds.get(book);
+    }
+
+    @Override
+    public int rowSize(int user) {
+        return rowOffsets.get(user + 1) - rowOffsets.get(user);
+    }
+
+    @Override
+    public int rowBook(int user, int k) {
+        return rowBooks.get(rowOffsets.get(user) + k);
+    }
+
+    @Override
+    public float rowRating(int user, int k) {
+        return rowRatings.get(rowOffsets.get(user) + k);
+    }
+
+    @Override
+    public int columnSize(int book) {
+        return colOffsets.get(book + 1) - colOffsets.get(book);
+    }
+
+    @Override
+    public int columnUser(int book, int k) {
+        return colUsers.get(colOffsets.get(book) + k);
+    }
+
+    @Override
+    public float columnRating(int book, int k) {
+        return colRatings.get(colOffsets.get(book) + k);
+    }
+
+    private static long fileSize(int numUsers, int numBooks, long numRatings) {
+        return HEADER_SIZE + 4L * (numUsers + numBooks + (numUsers + 1) + (numBooks + 1)) + 16L * numRatings;
+    }
+
+    static long[] sourceStamp(Path source) throws IOException {
+        return new long[] { Files.size(source), Files.getLastModifiedTime(source).toMillis() };
+    }
+
+    private static long checksum(ByteBuffer buffer) {
+        var crc = new CRC32C();
+        crc.update(buffer.slice(HEADER_SIZE, buffer.capacity() - HEADER_SIZE));
+        return crc.getValue();
+    }
+
+    private static IntBuffer intSection(ByteBuffer buffer, int pos, int length) {
+        return buffer.slice(pos, 4 * length).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    private static FloatBuffer floatSection(ByteBuffer buffer, int pos, int length) {
+        return buffer.slice(pos, 4 * length).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    /**
+     * Binary search for key in ascending buffer[from, to). -1 if not found.
+     */
+    private static int search(IntBuffer buffer, int from, int to, int key) {
+        int lo = from;
+        int hi = to - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int value = buffer.get(mid);
+            if (value < key) {
+                lo = mid + 1;
+            } else if (value > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static int[] sortedIndices(int n, IntUnaryOperator idOf) {
+        long[] keys = new long[n];
+        for (int i = 0; i < n; ++i) {
+            keys[i] = ((long) idOf.applyAsInt(i) << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[n];
+        for (int i = 0; i < n; ++i) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+
+    /**
+     * Convert ratings (./ratings.json, or the file given as first argument)
+     * to a snapshot (./ratings.snapshot, or the second argument), and verify
+     * its checksum.
+     */
+    public static void main(String[] args) throws IOException {
+        Path source = Path.of(args.length > 0 ? args[0] : "./ratings.json");
+        Path file = Path.of(args.length > 1 ? args[1] : "./ratings.snapshot");
+        long startTime = System.currentTimeMillis();
+        var matrix = source.toString().endsWith(".ndjson")
+                ? RatingsLoader.loadNdjson(source, Runtime.getRuntime().availableProcessors())
+                : RatingsLoader.loadJson(source);
+        write(matrix, file, source);
+        open(file, source, true);
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        System.out.printf("Wrote %d users and %d books from %s to %s in %.3f seconds%n",
+                matrix.numUsers(), matrix.numBooks(), source, file, elapsedTime / 1000.0);
+    }
+}
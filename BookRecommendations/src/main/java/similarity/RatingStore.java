@@ -0,0 +1,20 @@
+package similarity;
+
+/**
+ * Read-only rows and columns of ratings by dense index, backing the rows
+ * and columns of a RatingMatrix that are not on the heap.
+ * See RatingSnapshot (memory-mapped) and CompressedRatings (compressed heap).
+ */
+interface RatingStore {
+    int rowSize(int user);
+
+    int rowBook(int user, int k);
+
+    float rowRating(int user, int k);
+
+    int columnSize(int book);
+
+    int columnUser(int book, int k);
+
+    float columnRating(int book, int k);
+}
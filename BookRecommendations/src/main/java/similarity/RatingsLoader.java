@@ -0,0 +1,315 @@
+package similarity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Load ratings written by the indexer into a RatingMatrix.
+ *
+ * Entries are objects with (at least) the fields "userID", "bookID"
+ * and "rating". They are read with Jackson's streaming token API
+ * into primitive buffers, so the document is never materialized.
+ *
+ * Two input formats are supported: a single JSON array of entries
+ * (ratings.json), and newline-delimited JSON with one entry per line
+ * (ratings.ndjson). The latter can be split into chunks at line
+ * boundaries and parsed on several threads.
+ */
+public class RatingsLoader {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * Load a JSON array of rating entries into a new RatingMatrix.
+     */
+    public static RatingMatrix loadJson(Path file) throws IOException {
+        var matrix = new RatingMatrix();
+        loadJson(file, matrix);
+        return matrix;
+    }
+
+    /**
+     * Load a JSON array of rating entries into matrix.
+     */
+    public static void loadJson(Path file, RatingMatrix matrix) throws IOException {
+        var buffer = new RatingBuffer();
+        try (JsonParser parser = JSON_FACTORY.createParser(file.toFile())) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Expected array of ratings in " + file);
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                readEntry(parser, buffer);
+            }
+            if (parser.currentToken() != JsonToken.END_ARRAY) {
+                throw new IOException("Unexpected " + parser.currentToken() + " in " + file);
+            }
+        }
+        buffer.drainTo(matrix);
+    }
+
+    /**
+     * Load newline-delimited rating entries into a new RatingMatrix,
+     * parsing chunks of the file on the given number of threads.
+     */
+    public static RatingMatrix loadNdjson(Path file, int threads) throws IOException {
+        var matrix = new RatingMatrix();
+        loadNdjson(file, matrix, threads);
+        return matrix;
+    }
+
+    /**
+     * Load newline-delimited rating entries into matrix, parsing
+     * chunks of the file on the given number of threads.
+     * Entries are inserted in file order regardless of threads.
+     */
+    public static void loadNdjson(Path file, RatingMatrix matrix, int threads) throws IOException {
+        long[] bounds = chunkBounds(file, Math.max(1, threads));
+        int chunks = bounds.length - 1;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(chunks, threads));
+        try {
+            List<Future<RatingBuffer>> parts = new ArrayList<>();
+            for (int i = 0; i < chunks; ++i) {
+                long from = bounds[i];
+                long to = bounds[i + 1];
+                parts.add(executor.submit(() -> readChunk(file, from, to)));
+            }
+            /* Concatenate in order so dense indices do not depend on scheduling. */
+            var all = new RatingBuffer();
+            for (var part : parts) {
+                all.addAll(part.get());
+            }
+            all.drainTo(matrix);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + file, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IOException("Failed to load " + file, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Split file into (at most) the given number of byte ranges of
+     * about equal size, each starting at the beginning of a line.
+     */
+    private static long[] chunkBounds(Path file, int chunks) throws IOException {
+        long size = Files.size(file);
+        long[] bounds = new long[chunks + 1];
+        int n = 0;
+        bounds[n++] = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var buffer = ByteBuffer.allocate(8192);
+            for (int i = 1; i < chunks; ++i) {
+                long pos = Math.max(size * i / chunks, bounds[n - 1]);
+                /* Advance to just after the next newline. */
+                boolean found = false;
+                while (!found && pos < size) {
+                    buffer.clear();
+                    int read = channel.read(buffer, pos);
+                    if (read <= 0) {
+                        break;
+                    }
+                    for (int k = 0; k < read; ++k) {
+                        if (buffer.get(k) == '\n') {
+                            pos += k + 1;
+                            found = true;
+                            break;
+                        }
+                    }
+                    if (!found) {
+                        pos += read;
+                    }
+                }
+                if (pos < size && pos > bounds[n - 1]) {
+                    bounds[n++] = pos;
+                }
+            }
+        }
+        bounds[n++] = size;
+        return Arrays.copyOf(bounds, n);
+    }
+
+    /**
+     * Parse the entries within byte range [from, to) of file.
+     */
+    private static RatingBuffer readChunk(Path file, long from, long to) throws IOException {
+        var buffer = new RatingBuffer();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.position(from);
+            InputStream in = new BoundedInputStream(Channels.newInputStream(channel), to - from);
+            try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+                JsonToken token;
+                while ((token = parser.nextToken()) != null) {
+                    if (token != JsonToken.START_OBJECT) {
+                        throw new IOException("Expected rating object in " + file + " near byte " + from);
+                    }
+                    readEntry(parser, buffer);
+                }
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Read one entry object, the parser being positioned at its START_OBJECT.
+     */
+    private static void readEntry(JsonParser parser, RatingBuffer buffer) throws IOException {
+        long user_id = -1;
+        long book_id = -1;
+        double rating = Double.NaN;
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "userID" -> user_id = parser.getLongValue();
+                case "bookID" -> book_id = parser.getLongValue();
+                case "rating" -> rating = parser.getDoubleValue();
+                default -> {
+                    if (value.isStructStart()) {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        }
+        if (user_id < 0 || book_id < 0 || Double.isNaN(rating)) {
+            throw new IOException("Incomplete rating entry ending at " + parser.currentLocation());
+        }
+        buffer.add((int) user_id, (int) book_id, (float) rating);
+    }
+
+    /**
+     * Growable parallel primitive arrays of (user id, book id, rating).
+     */
+    private static class RatingBuffer {
+        private int[] users = new int[1024];
+        private int[] books = new int[1024];
+        private float[] ratings = new float[1024];
+        private int size = 0;
+
+        void add(int user_id, int book_id, float rating) {
+            if (size == users.length) {
+                grow(size + 1);
+            }
+            users[size] = user_id;
+            books[size] = book_id;
+            ratings[size++] = rating;
+        }
+
+        void addAll(RatingBuffer other) {
+            if (size + other.size > users.length) {
+                grow(size + other.size);
+            }
+            System.arraycopy(other.users, 0, users, size, other.size);
+            System.arraycopy(other.books, 0, books, size, other.size);
+            System.arraycopy(other.ratings, 0, ratings, size, other.size);
+            size += other.size;
+        }
+
+        void drainTo(RatingMatrix matrix) {
+            matrix.putAll(users, books, ratings, size);
+        }
+
+        private void grow(int capacity) {
+            int grown = Math.max(capacity, users.length * 2);
+            users = Arrays.copyOf(users, grown);
+            books = Arrays.copyOf(books, grown);
+            ratings = Arrays.copyOf(ratings, grown);
+        }
+    }
+
+    /**
+     * Input stream reading at most limit bytes from an underlying stream.
+     */
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long limit) {
+            this.in = in;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                --remaining;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Test class. Loads the same ratings from both formats.
+     */
+    public static void main(String[] args) throws IOException {
+        Path json = Files.createTempFile("ratings", ".json");
+        Path ndjson = Files.createTempFile("ratings", ".ndjson");
+        try {
+            var lines = new ArrayList<String>();
+            for (int user = 0; user < 50; ++user) {
+                for (int book = user % 7; book < 200; book += 3) {
+                    lines.add(String.format("{\"userID\": %d, \"bookID\": %d, \"title\": \"t\", \"author\": \"a\", \"rating\": %d}",
+                            164001102 + user, 60533475 + book, 1 + (user + book) % 5));
+                }
+            }
+            Files.writeString(json, "[" + String.join(", ", lines) + "]");
+            Files.writeString(ndjson, String.join("\n", lines) + "\n");
+
+            var fromJson = loadJson(json);
+            var fromNdjson = loadNdjson(ndjson, 4);
+            boolean equal = fromJson.numUsers() == fromNdjson.numUsers() && fromJson.numBooks() == fromNdjson.numBooks();
+            for (int user_id : fromJson.getUserIds()) {
+                for (var entry : fromJson.getEntrySetFromUser(user_id)) {
+                    equal &= fromNdjson.getRating(user_id, entry.getKey()) == entry.getValue();
+                }
+            }
+            System.out.println(equal);
+            System.out.println(fromJson.getRating(164001102 + 3, 60533475 + 3) == 1 + (3 + 3) % 5);
+        } finally {
+            Files.deleteIfExists(json);
+            Files.deleteIfExists(ndjson);
+        }
+    }
+}
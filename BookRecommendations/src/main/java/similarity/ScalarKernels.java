@@ -0,0 +1,50 @@
+package similarity;
+
+/**
+ * Plain loop kernels, used when the Vector API is not available.
+ */
+class ScalarKernels implements Kernels.Impl {
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float sum = 0f;
+        for (int i = 0; i < length; ++i) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public float sumOfSquares(float[] a, int offset, int length) {
+        float sum = 0f;
+        for (int i = 0; i < length; ++i) {
+            sum += a[offset + i] * a[offset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public float sumOfAbs(float[] a, int offset, int length) {
+        float sum = 0f;
+        for (int i = 0; i < length; ++i) {
+            sum += Math.abs(a[offset + i]);
+        }
+        return sum;
+    }
+
+    @Override
+    public float gatherDot(float[] dense, int[] indices, float[] values, int length) {
+        float sum = 0f;
+        for (int i = 0; i < length; ++i) {
+            sum += dense[indices[i]] * values[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void scaleAdd(double[] base, double weight, double[] values, double[] out, int length) {
+        for (int i = 0; i < length; ++i) {
+            out[i] = base[i] + weight * values[i];
+        }
+    }
+}
@@ -9,4 +9,16 @@ package similarity;
  */
 public interface Similarity {
     public double sim(int user_id_A, int user_id_B);
+
+    /**
+     * Get similarity scores between a user and each of other_user_ids,
+     * so that out[i] = sim(user_id, other_user_ids[i]).
+     * Implementations should override this when scoring many users 
+     * against the same user can share work.
+     */
+    public default void simMany(int user_id, int[] other_user_ids, double[] out) {
+        for (int i = 0; i < other_user_ids.length; ++i) {
+            out[i] = sim(user_id, other_user_ids[i]);
+        }
+    }
 }   
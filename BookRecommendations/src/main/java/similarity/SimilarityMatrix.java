@@ -1,5 +1,6 @@
 package similarity;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -11,19 +12,28 @@ import java.util.Set;
  * Matrix where rows and columns are represented by user id's.
  * Entries are similarity scores between each user from a 
  * Set of users computed from a Similarity.
+ * 
+ * Matrices built by SimilarityMatrixBuilder instead store primitive
+ * rows: for each (dense) user index, the indices of the users after it
+ * with non-zero similarity, in ascending order, and the similarities.
  */
 public class SimilarityMatrix implements Similarity {
     /* Store similarity scores. */
     private Map<Integer,Map<Integer,Double>> userToUserSimilarity = new HashMap<>();
     private final boolean similarityIsSymmetric;
 
+    /* Primitive rows, null unless built by SimilarityMatrixBuilder. */
+    private final IdIndex userIndex;
+    private final int[][] rowUsers;
+    private final double[][] rowSims;
+
     /**
      * Create empty SimilarityMatrix.
      * Similarity is assumed to be assymetric.
      * Insert similarities with put.
      */
     public SimilarityMatrix() {
-        this.similarityIsSymmetric = false;
+        this(false);
     }
 
     /**
@@ -32,6 +42,21 @@ public class SimilarityMatrix implements Similarity {
      */
     public SimilarityMatrix(boolean similarityIsSymmetric) {
         this.similarityIsSymmetric = similarityIsSymmetric;
+        this.userIndex = null;
+        this.rowUsers = null;
+        this.rowSims = null;
+    }
+
+    /**
+     * Symmetric SimilarityMatrix with primitive rows, where rowUsers[a] are the 
+     * user indices b > a (ascending) with similarity rowSims[a] to user index a. 
+     * Similarities not in the rows are 0.
+     */
+    SimilarityMatrix(IdIndex userIndex, int[][] rowUsers, double[][] rowSims) {
+        this.similarityIsSymmetric = true;
+        this.userIndex = userIndex;
+        this.rowUsers = rowUsers;
+        this.rowSims = rowSims;
     }
 
     /** 
@@ -41,7 +66,7 @@ public class SimilarityMatrix implements Similarity {
      */
     public SimilarityMatrix(Similarity similarity, Set<Integer> user_ids, boolean similarityIsSymmetric) {
         /* Iterate over every user in rating matrix. */
-        this.similarityIsSymmetric = similarityIsSymmetric;
+        this(similarityIsSymmetric);
         for (var user_id_A : user_ids) {
             userToUserSimilarity.put(user_id_A, new HashMap<>());
             for (var user_id_B : user_ids) {
@@ -64,7 +89,7 @@ public class SimilarityMatrix implements Similarity {
      * Construct similarity matrix between one user and a set other users.
      */
     public SimilarityMatrix(Similarity similarity, int user_id, Set<Integer> other_user_ids, boolean similarityIsSymmetric) {
-        this.similarityIsSymmetric = similarityIsSymmetric;
+        this(similarityIsSymmetric);
         for (int other_user_id : other_user_ids) {
             put(similarity, user_id, other_user_id);
         }
@@ -100,6 +125,11 @@ public class SimilarityMatrix implements Similarity {
      */
     @Override
     public double sim(int user_id_A, int user_id_B) {
+        if (rowUsers != null) {
+            Map<Integer,Double> row = userToUserSimilarity.get(Math.min(user_id_A, user_id_B));
+            Double sim = row != null ? row.get(Math.max(user_id_A, user_id_B)) : null;
+            return sim != null ? sim : rowSim(user_id_A, user_id_B);
+        }
         if (!similarityIsSymmetric || user_id_A <= user_id_B) {
             return userToUserSimilarity.get(user_id_A).get(user_id_B);
         } else {
@@ -108,6 +138,41 @@ public class SimilarityMatrix implements Similarity {
     }
 
 
+    /**
+     * Get similarity scores between a user and each of other_user_ids.
+     * Looks up the row of the user once instead of once per other user.
+     */
+    @Override
+    public void simMany(int user_id, int[] other_user_ids, double[] out) {
+        if (rowUsers != null) {
+            Similarity.super.simMany(user_id, other_user_ids, out);
+            return;
+        }
+        Map<Integer,Double> row = userToUserSimilarity.get(user_id);
+        for (int i = 0; i < other_user_ids.length; ++i) {
+            int other_user_id = other_user_ids[i];
+            if (!similarityIsSymmetric || user_id <= other_user_id) {
+                out[i] = row.get(other_user_id);
+            } else {
+                out[i] = userToUserSimilarity.get(other_user_id).get(user_id);
+            }
+        }
+    }
+
+    /**
+     * Look up similarity between user A and B in the primitive rows.
+     */
+    private double rowSim(int user_id_A, int user_id_B) {
+        int a = userIndex.get(user_id_A);
+        int b = userIndex.get(user_id_B);
+        if (a < 0 || b < 0) {
+            return 0d;
+        }
+        int row = Math.min(a, b);
+        int pos = Arrays.binarySearch(rowUsers[row], Math.max(a, b));
+        return pos >= 0 ? rowSims[row][pos] : 0d;
+    }
+
     /**
      * Test that similaritites between RatingMatrix and 
      * SimilarityMatrix are consistent.
@@ -165,5 +230,11 @@ public class SimilarityMatrix implements Similarity {
         System.out.println(ratingSim11 == similaritySim11);
         System.out.println(ratingSim12 == similaritySim12);
         System.out.println(ratingSim22 == similaritySim22);
+
+        /* Batch lookups should equal pairwise lookups. */
+        int[] others = {0, 1, 2};
+        double[] out = new double[others.length];
+        similarityMatrix.simMany(1, others, out);
+        System.out.println(out[0] == ratingSim01 && out[1] == ratingSim11 && out[2] == ratingSim12);
     }
 }
@@ -0,0 +1,218 @@
+package similarity;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Build a SimilarityMatrix with the cosine similarities between all
+ * users of a RatingMatrix in parallel.
+ *
+ * Rather than computing sim(A,B) for all N^2 pairs, dot products are
+ * accumulated from the book to users index (columns of the RatingMatrix):
+ * for user A, every book it has rated adds to the dot product of A with
+ * each later user who has also rated the book. Only pairs that share a
+ * book are touched, all other similarities are 0.
+ *
+ * Users are split into blocks of rows of the upper triangle with about
+ * equal area, which are computed on a fork-join pool.
+ */
+public class SimilarityMatrixBuilder {
+    /* Rows per leaf task. */
+    private static final int BLOCK_SIZE = 64;
+
+    private final RatingMatrix ratingMatrix;
+
+    private final int[][] rowUsers;
+    private final double[][] rowSims;
+    private final double[] lengths;
+
+    /* Accumulators not in use by a leaf task, at most one per worker thread.
+       They are dropped with the builder, not kept by the pool's threads. */
+    private final ConcurrentLinkedQueue<Scratch> scratches = new ConcurrentLinkedQueue<>();
+
+    private SimilarityMatrixBuilder(RatingMatrix ratingMatrix) {
+        this.ratingMatrix = ratingMatrix;
+        int numUsers = ratingMatrix.numUsers();
+        rowUsers = new int[numUsers][];
+        rowSims = new double[numUsers][];
+        lengths = new double[numUsers];
+    }
+
+    /**
+     * Dot products of one row with all later users, and which of them are nonzero.
+     * Left cleared after each row.
+     */
+    private static class Scratch {
+        private final double[] dots;
+        private final int[] touched;
+        private final boolean[] seen;
+
+        Scratch(int numUsers) {
+            dots = new double[numUsers];
+            touched = new int[numUsers];
+            seen = new boolean[numUsers];
+        }
+    }
+
+    /**
+     * Build symmetric SimilarityMatrix of the cosine similarities (with specified metric)
+     * between all users in ratingMatrix, using the common fork-join pool.
+     * Similarities are equal to cosine.sim(A, B, metric).
+     */
+    public static SimilarityMatrix build(RatingMatrix ratingMatrix, CosineSimilarity cosine, CosineSimilarity.Metric metric) {
+        return build(ratingMatrix, cosine, metric, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Build symmetric SimilarityMatrix of the cosine similarities (with specified metric)
+     * between all users in ratingMatrix, using the given fork-join pool.
+     */
+    public static SimilarityMatrix build(RatingMatrix ratingMatrix, CosineSimilarity cosine, CosineSimilarity.Metric metric, ForkJoinPool pool) {
+        var builder = new SimilarityMatrixBuilder(ratingMatrix);
+        int numUsers = ratingMatrix.numUsers();
+        IdIndex userIndex = new IdIndex(numUsers);
+        for (int user = 0; user < numUsers; ++user) {
+            userIndex.getOrAdd(ratingMatrix.getUserId(user));
+            builder.lengths[user] = cosine.length(ratingMatrix.getUserId(user), metric);
+        }
+        pool.invoke(builder.new Block(0, numUsers));
+        return new SimilarityMatrix(userIndex, builder.rowUsers, builder.rowSims);
+    }
+
+    /**
+     * Compute rows [from, to), splitting into two blocks of about
+     * equal triangle area while larger than BLOCK_SIZE.
+     */
+    private class Block extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        Block(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BLOCK_SIZE) {
+                computeRows(from, to);
+                return;
+            }
+            /* Row a of the upper triangle has n - a entries, so rows [from, mid)
+             * and [mid, to) have equal area when (n - mid)^2 is the mean of
+             * (n - from)^2 and (n - to)^2. */
+            double n = rowUsers.length;
+            double tail = Math.sqrt(((n - from) * (n - from) + (n - to) * (n - to)) / 2);
+            int mid = Math.max(from + 1, Math.min(to - 1, (int) Math.round(n - tail)));
+            invokeAll(new Block(from, mid), new Block(mid, to));
+        }
+    }
+
+    /**
+     * Compute rows [from, to) with a dense scratch accumulator, reused across leaf tasks.
+     */
+    private void computeRows(int from, int to) {
+        Scratch scratch = scratches.poll();
+        if (scratch == null) {
+            scratch = new Scratch(rowUsers.length);
+        }
+        double[] dots = scratch.dots;
+        int[] touched = scratch.touched;
+        boolean[] seen = scratch.seen;
+
+        for (int a = from; a < to; ++a) {
+            int numTouched = 0;
+            int size = ratingMatrix.rowSize(a);
+            for (int k = 0; k < size; ++k) {
+                int book = ratingMatrix.rowBook(a, k);
+                double rating = ratingMatrix.rowRating(a, k);
+                /* Columns are sorted by user index, start after a. */
+                int columnSize = ratingMatrix.columnSize(book);
+                int c = firstAfter(book, columnSize, a);
+                for (; c < columnSize; ++c) {
+                    int b = ratingMatrix.columnUser(book, c);
+                    if (!seen[b]) {
+                        seen[b] = true;
+                        touched[numTouched++] = b;
+                    }
+                    dots[b] += rating * ratingMatrix.columnRating(book, c);
+                }
+            }
+            /* Diagonal. */
+            double self = 0d;
+            for (int k = 0; k < size; ++k) {
+                double rating = ratingMatrix.rowRating(a, k);
+                self += rating * rating;
+            }
+
+            Arrays.sort(touched, 0, numTouched);
+            int[] users = new int[numTouched + 1];
+            double[] sims = new double[numTouched + 1];
+            int n = 0;
+            if (self != 0d) {
+                users[n] = a;
+                sims[n++] = CosineSimilarity.cosine(self, lengths[a], lengths[a]);
+            }
+            for (int i = 0; i < numTouched; ++i) {
+                int b = touched[i];
+                if (dots[b] != 0d) {
+                    users[n] = b;
+                    sims[n++] = CosineSimilarity.cosine(dots[b], lengths[a], lengths[b]);
+                }
+                dots[b] = 0d;
+                seen[b] = false;
+            }
+            rowUsers[a] = Arrays.copyOf(users, n);
+            rowSims[a] = Arrays.copyOf(sims, n);
+        }
+        scratches.offer(scratch);
+    }
+
+    /**
+     * Position of the first user index greater than a in column of book.
+     */
+    private int firstAfter(int book, int columnSize, int a) {
+        int lo = 0;
+        int hi = columnSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ratingMatrix.columnUser(book, mid) <= a) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+
+    /**
+     * Test that the parallel build agrees with the serial all-pairs SimilarityMatrix.
+     */
+    public static void main(String[] args) {
+        var ratingMatrix = new RatingMatrix();
+        var random = new java.util.Random(7);
+        for (int n = 0; n < 20000; ++n) {
+            ratingMatrix.put(random.nextInt(500), random.nextInt(2000), 1 + random.nextInt(5));
+        }
+        var cosine = new CosineSimilarity(ratingMatrix);
+
+        long startTime = System.currentTimeMillis();
+        var serial = new SimilarityMatrix(cosine, ratingMatrix.getUserIds());
+        long serialTime = System.currentTimeMillis() - startTime;
+        startTime = System.currentTimeMillis();
+        var parallel = build(ratingMatrix, cosine, CosineSimilarity.Metric.EUCLIDEAN);
+        long parallelTime = System.currentTimeMillis() - startTime;
+
+        boolean equal = true;
+        for (int user_id_A : ratingMatrix.getUserIds()) {
+            for (int user_id_B : ratingMatrix.getUserIds()) {
+                equal &= serial.sim(user_id_A, user_id_B) == parallel.sim(user_id_A, user_id_B);
+            }
+        }
+        System.out.println(equal);
+        System.out.printf("serial %d ms, parallel %d ms%n", serialTime, parallelTime);
+    }
+}
@@ -0,0 +1,93 @@
+package similarity;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels vectorized with the Vector API at the preferred SIMD width.
+ * Only loaded by Kernels when the jdk.incubator.vector module is present.
+ */
+class VectorKernels implements Kernels.Impl {
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+    VectorKernels() {
+        if (FLOATS.length() < 4) {
+            throw new UnsupportedOperationException("No SIMD support for " + FLOATS);
+        }
+    }
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        var sum = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+            var va = FloatVector.fromArray(FLOATS, a, aOffset + i);
+            var vb = FloatVector.fromArray(FLOATS, b, bOffset + i);
+            sum = va.fma(vb, sum);
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; ++i) {
+            result += a[aOffset + i] * b[bOffset + i];
+        }
+        return result;
+    }
+
+    @Override
+    public float sumOfSquares(float[] a, int offset, int length) {
+        var sum = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+            var va = FloatVector.fromArray(FLOATS, a, offset + i);
+            sum = va.fma(va, sum);
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; ++i) {
+            result += a[offset + i] * a[offset + i];
+        }
+        return result;
+    }
+
+    @Override
+    public float sumOfAbs(float[] a, int offset, int length) {
+        var sum = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+            sum = sum.add(FloatVector.fromArray(FLOATS, a, offset + i).abs());
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; ++i) {
+            result += Math.abs(a[offset + i]);
+        }
+        return result;
+    }
+
+    @Override
+    public float gatherDot(float[] dense, int[] indices, float[] values, int length) {
+        var sum = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+            var gathered = FloatVector.fromArray(FLOATS, dense, 0, indices, i);
+            sum = gathered.fma(FloatVector.fromArray(FLOATS, values, i), sum);
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; ++i) {
+            result += dense[indices[i]] * values[i];
+        }
+        return result;
+    }
+
+    @Override
+    public void scaleAdd(double[] base, double weight, double[] values, double[] out, int length) {
+        int i = 0;
+        for (int bound = DOUBLES.loopBound(length); i < bound; i += DOUBLES.length()) {
+            var vb = DoubleVector.fromArray(DOUBLES, base, i);
+            DoubleVector.fromArray(DOUBLES, values, i).fma(DoubleVector.broadcast(DOUBLES, weight), vb).intoArray(out, i);
+        }
+        for (; i < length; ++i) {
+            out[i] = base[i] + weight * values[i];
+        }
+    }
+}
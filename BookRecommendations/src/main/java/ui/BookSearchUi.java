@@ -8,18 +8,28 @@ import components.Book;
 import components.DisplayType;
 import components.UserProfile;
 import io.github.cdimascio.dotenv.Dotenv;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import searcher.BookCatalog;
 import searcher.BookSearcher;
+import searcher.BookSuggester;
+import searcher.Facets;
+import searcher.ResultPage;
+import searcher.SearchFilter;
+import similarity.BookNeighborIndex;
 import similarity.CosineSimilarity;
+import similarity.FactorModel;
+import similarity.LshIndex;
+import similarity.NeighborGraph;
 import similarity.RatingMatrix;
+import similarity.RatingSnapshot;
+import similarity.RatingsLoader;
 import similarity.Similarity;
 import components.QueryType;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 import java.awt.Component;
 import java.awt.Dimension;
@@ -31,10 +41,17 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 
 public class BookSearchUi extends JFrame {
     public JPanel resultWindow = new JPanel();
@@ -49,7 +66,11 @@ public class BookSearchUi extends JFrame {
     JMenu optionsMenu = new JMenu("Search options");
 
     JMenu displayReadMenu = new JMenu("Display my books?");
+
+    /* Facets of the current results, choosing one narrows the search to it. */
+    JMenu filterMenu = new JMenu("Filters");
     JMenuItem quitItem = new JMenuItem("Quit");
+    JMenuItem cacheStatsItem = new JMenuItem("Cache statistics");
     JMenuItem resetItem = new JMenuItem("Reset user");
     JRadioButtonMenuItem testProfile1Item = new JRadioButtonMenuItem("Test profile 1");
     JRadioButtonMenuItem testProfile2Item = new JRadioButtonMenuItem("Test profile 2");
@@ -59,6 +80,9 @@ public class BookSearchUi extends JFrame {
     JRadioButtonMenuItem testProfile4Item = new JRadioButtonMenuItem("Test profile 4");
 
     JRadioButtonMenuItem userItem = new JRadioButtonMenuItem("User query");
+    JRadioButtonMenuItem itemItem = new JRadioButtonMenuItem("Item query");
+    JRadioButtonMenuItem modelItem = new JRadioButtonMenuItem("Model query");
+    JRadioButtonMenuItem popularItem = new JRadioButtonMenuItem("Popular query");
     JRadioButtonMenuItem neutralItem = new JRadioButtonMenuItem("Neutral query");
 
     JRadioButtonMenuItem showMyBooksItem = new JRadioButtonMenuItem("Yes");
@@ -88,17 +112,78 @@ public class BookSearchUi extends JFrame {
     private BookSearcher searcher;
     private List<Book> currentResultList;
 
+    /* Last page of currentResultList, to load more results after. */
+    private ResultPage currentPage;
+
+    /* Latest search, until its results are displayed. Only accessed on the event thread. */
+    private CompletableFuture<ResultPage> pendingSearch;
+
+    private BookSuggester suggester;
+
+    /* Asks for suggestions once typing pauses, and shows them below the query. */
+    private Timer suggestTimer;
+    private JPopupMenu suggestionMenu = new JPopupMenu();
+
+    /* True while the query is set by the program, which should not trigger suggestions. */
+    private boolean settingQuery;
+
+    /* Filters of the current search, reset by each new query. */
+    private SearchFilter filter = SearchFilter.NONE;
+
     private QueryType queryType;
     private DisplayType displayType;
 
     private UserProfile user;
 
-    private RatingMatrix ratingMatrix;
-    private Similarity similarity;
+    /* The ratings the matrix was loaded from, which precomputed neighbors must be built from. */
+    private Path ratingsFile;
+    /* Replaced on ratingUpdates if the snapshot the matrix was opened from turns out corrupt. */
+    private volatile RatingMatrix ratingMatrix;
+    private volatile Similarity similarity;
 
-    private String RATINGS_FILE = "./ratings.json";
+    /* Ratings put since the rating snapshot was opened, while its checksum is verified,
+       to put again if the matrix is rebuilt. Null once verified. Used on ratingUpdates. */
+    private List<int[]> unverifiedRatings;
+
+    /* Updates and reads of the rating matrix from the UI, in order. They wait for
+       searches re-ranking with the matrix, which the event dispatch thread must not. */
+    private final ExecutorService ratingUpdates = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("rating-updates").daemon().factory());
 
+    private String RATINGS_FILE = "./ratings.json";
+    private String RATINGS_NDJSON_FILE = "./ratings.ndjson";
+    private String RATINGS_SNAPSHOT_FILE = "./ratings.snapshot";
+    private String NEIGHBOR_GRAPH_FILE = "./neighbors.graph";
+    private String BOOK_NEIGHBORS_FILE = "./book_neighbors.graph";
+    private String FACTOR_MODEL_FILE = "./factors.model";
+    private String BOOK_CATALOG_FILE = "./books.catalog";
+
+    /* Results displayed per page, among the hits of each retrieval window. */
     private final int MAX_DISPLAY_RESULTS = 99;
+    private final int RETRIEVAL_WINDOW = 300;
+
+    /* Queries matching fewer books exactly are searched again with fuzzy matching. */
+    private final int MIN_EXACT_HITS = 20;
+
+    /* Hits counted by popular queries, which blend text scores with popularity. */
+    private final int POPULAR_TOTAL_HITS = 1000;
+
+    /* Users with more read books have them looked up by the query when they are hidden. */
+    private final int MAX_EXCLUDED_IDS = 1024;
+
+    /* Search-as-you-type: suggestions for prefixes of at least MIN_SUGGEST_PREFIX
+       characters, asked for when no key has been typed for SUGGEST_DELAY_MS. */
+    private final boolean USE_SUGGESTIONS = true;
+    private final int SUGGEST_DELAY_MS = 150;
+    private final int MIN_SUGGEST_PREFIX = 2;
+    private final int MAX_SUGGESTIONS = 8;
+    private final int SUGGEST_CACHE_SIZE = 512;
+
+    /* Candidate generation for users without precomputed neighbors. */
+    private final boolean USE_LSH = true;
+    private final int LSH_BANDS = 64;
+    private final int LSH_ROWS = 1;
+    private final int LSH_CANDIDATES = 500;
 
     private final int TEST_PROFILE1_ID = 164001102;
     private final int TEST_PROFILE2_ID = 177735400;
@@ -112,10 +197,20 @@ public class BookSearchUi extends JFrame {
     void init() {
         Dotenv dotenv = Dotenv.configure().load();
         searcher = new BookSearcher("localhost", 9200, dotenv.get("ES_FINGERPRINT"), dotenv.get("ES_PASSWORD"), dotenv.get("ES_INDEX"));
+        searcher.setResultWindow(RETRIEVAL_WINDOW, MAX_DISPLAY_RESULTS);
+        searcher.setMinExactHits(MIN_EXACT_HITS);
+        searcher.setPopularTotalHits(POPULAR_TOTAL_HITS);
+        searcher.setMaxExcludedIds(MAX_EXCLUDED_IDS);
         user = new UserProfile();
 
         initRatingMatrix();
         initSimilarity();
+        initCatalog();
+        searcher.attach(ratingMatrix);
+        verifyRatingSnapshot();
+        if (USE_SUGGESTIONS) {
+            suggester = new BookSuggester(searcher, MAX_SUGGESTIONS, SUGGEST_CACHE_SIZE);
+        }
 
         try {
             emptyStar = ImageIO.read(new File(emptyStarIconFile));
@@ -140,6 +235,9 @@ public class BookSearchUi extends JFrame {
         menuBar.add(userMenu);
         menuBar.add(optionsMenu);
         menuBar.add(displayReadMenu);
+        menuBar.add(filterMenu);
+        filterMenu.setEnabled(false);
+        fileMenu.add(cacheStatsItem);
         fileMenu.add(quitItem);
         userMenu.add(resetItem);
         userMenu.add(testProfile1Item);
@@ -147,6 +245,9 @@ public class BookSearchUi extends JFrame {
         userMenu.add(testProfile3Item);
         userMenu.add(testProfile4Item);
         optionsMenu.add(userItem);
+        optionsMenu.add(itemItem);
+        optionsMenu.add(modelItem);
+        optionsMenu.add(popularItem);
         optionsMenu.add(neutralItem);
         displayReadMenu.add(showMyBooksItem);
         displayReadMenu.add(hideMyBooksItem);
@@ -167,14 +268,21 @@ public class BookSearchUi extends JFrame {
             }
         };
         quitItem.addActionListener(quit);
+        Action showCacheStats = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                docTextView.setText("Query cache (hits per query):\n" + searcher.getHitCacheStats()
+                        + "\n\nRanking cache (boosted hits per query and user):\n" + searcher.getRankingCacheStats());
+                docTextView.setCaretPosition(0);
+            }
+        };
+        cacheStatsItem.addActionListener(showCacheStats);
 
         Action testProfile1 = new AbstractAction() {
             public void actionPerformed(ActionEvent e) {
                 testProfile2Item.setSelected(false);
                 testProfile3Item.setSelected(false);
                 testProfile4Item.setSelected(false);
-                user = new UserProfile(TEST_PROFILE1_ID);
-                user.loadRatings(ratingMatrix);
+                switchProfile(TEST_PROFILE1_ID);
             }
         };
         testProfile1Item.addActionListener(testProfile1);
@@ -183,8 +291,7 @@ public class BookSearchUi extends JFrame {
                 testProfile1Item.setSelected(false);
                 testProfile3Item.setSelected(false);
                 testProfile4Item.setSelected(false);
-                user = new UserProfile(TEST_PROFILE2_ID);
-                user.loadRatings(ratingMatrix);
+                switchProfile(TEST_PROFILE2_ID);
             }
         };
         testProfile2Item.addActionListener(testProfile2);
@@ -193,8 +300,7 @@ public class BookSearchUi extends JFrame {
                 testProfile1Item.setSelected(false);
                 testProfile2Item.setSelected(false);
                 testProfile4Item.setSelected(false);
-                user = new UserProfile(TEST_PROFILE3_ID);
-                user.loadRatings(ratingMatrix);
+                switchProfile(TEST_PROFILE3_ID);
             }
         };
         testProfile3Item.addActionListener(testProfile3);
@@ -203,8 +309,7 @@ public class BookSearchUi extends JFrame {
                 testProfile1Item.setSelected(false);
                 testProfile2Item.setSelected(false);
                 testProfile3Item.setSelected(false);
-                user = new UserProfile(TEST_PROFILE4_ID);
-                user.loadRatings(ratingMatrix);
+                switchProfile(TEST_PROFILE4_ID);
             }
         };
         testProfile4Item.addActionListener(testProfile4);
@@ -213,18 +318,54 @@ public class BookSearchUi extends JFrame {
         queryType = QueryType.USER_QUERY;
         Action chooseUserItem = new AbstractAction() {
             public void actionPerformed(ActionEvent e) {
+                itemItem.setSelected(false);
+                modelItem.setSelected(false);
                 neutralItem.setSelected(false);
+                popularItem.setSelected(false);
                 queryType = QueryType.USER_QUERY;
             }
         };
         userItem.addActionListener(chooseUserItem);
+        Action chooseItemItem = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                userItem.setSelected(false);
+                modelItem.setSelected(false);
+                neutralItem.setSelected(false);
+                popularItem.setSelected(false);
+                queryType = QueryType.ITEM_QUERY;
+            }
+        };
+        itemItem.addActionListener(chooseItemItem);
+        Action chooseModelItem = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                userItem.setSelected(false);
+                itemItem.setSelected(false);
+                neutralItem.setSelected(false);
+                popularItem.setSelected(false);
+                queryType = QueryType.MODEL_QUERY;
+            }
+        };
+        modelItem.addActionListener(chooseModelItem);
         Action chooseNeutralItem = new AbstractAction() {
             public void actionPerformed(ActionEvent e) {
                 userItem.setSelected(false);
+                itemItem.setSelected(false);
+                modelItem.setSelected(false);
+                popularItem.setSelected(false);
                 queryType = QueryType.NEUTRAL_QUERY;
             }
         };
         neutralItem.addActionListener(chooseNeutralItem);
+        Action choosePopularItem = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                userItem.setSelected(false);
+                itemItem.setSelected(false);
+                modelItem.setSelected(false);
+                neutralItem.setSelected(false);
+                queryType = QueryType.POPULAR_QUERY;
+            }
+        };
+        popularItem.addActionListener(choosePopularItem);
 
         hideMyBooksItem.setSelected(true);
         displayType = DisplayType.HIDE_READ_BOOKS;
@@ -266,44 +407,257 @@ public class BookSearchUi extends JFrame {
         Action search = new AbstractAction() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                try {
-                    long startTime = System.currentTimeMillis();
-                    currentResultList = searcher.searchBooks(queryWindow.getText().toLowerCase().trim(), queryType, displayType, user, ratingMatrix, similarity);
-                    long elapsedTime = System.currentTimeMillis() - startTime;
-                    displayResults(elapsedTime / 1000.0);
-                } catch (
-                        IOException ex) {
-                    throw new RuntimeException(ex);
-                }
+                hideSuggestions();
+                searchFiltered(SearchFilter.NONE);
             }
         };
         queryWindow.registerKeyboardAction(search,
                 "",
                 KeyStroke.getKeyStroke("ENTER"),
                 JComponent.WHEN_FOCUSED);
+
+        if (suggester != null) {
+            initSuggestions(search);
+        }
+    }
+
+    /**
+     * Suggest completions of the query while it is typed. Choosing a
+     * suggestion replaces the query and searches for it.
+     */
+    private void initSuggestions(Action search) {
+        suggestionMenu.setFocusable(false);
+        suggestTimer = new Timer(SUGGEST_DELAY_MS, e -> requestSuggestions(search));
+        suggestTimer.setRepeats(false);
+        queryWindow.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                queryChanged();
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                queryChanged();
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+            }
+
+            private void queryChanged() {
+                if (!settingQuery) {
+                    suggestTimer.restart();
+                }
+            }
+        });
+        queryWindow.registerKeyboardAction(e -> hideSuggestions(),
+                "",
+                KeyStroke.getKeyStroke("ESCAPE"),
+                JComponent.WHEN_FOCUSED);
+    }
+
+    /**
+     * Ask for suggestions of the current query, and show them unless the
+     * query has changed by the time they arrive.
+     */
+    private void requestSuggestions(Action search) {
+        String prefix = queryWindow.getText();
+        if (prefix.trim().length() < MIN_SUGGEST_PREFIX) {
+            hideSuggestions();
+            return;
+        }
+        suggester.suggest(prefix).whenComplete((suggestions, ex) -> SwingUtilities.invokeLater(() -> {
+            if (ex != null || !prefix.equals(queryWindow.getText()) || !queryWindow.isFocusOwner()) {
+                return;
+            }
+            showSuggestions(suggestions, search);
+        }));
+    }
+
+    private void showSuggestions(List<String> suggestions, Action search) {
+        suggestionMenu.setVisible(false);
+        suggestionMenu.removeAll();
+        if (suggestions.isEmpty()) {
+            return;
+        }
+        for (String suggestion : suggestions) {
+            JMenuItem item = new JMenuItem(suggestion);
+            item.setFont(font);
+            item.addActionListener(e -> {
+                settingQuery = true;
+                queryWindow.setText(suggestion);
+                settingQuery = false;
+                search.actionPerformed(e);
+            });
+            suggestionMenu.add(item);
+        }
+        suggestionMenu.show(queryWindow, 0, queryWindow.getHeight());
+        queryWindow.requestFocusInWindow();
+    }
+
+    private void hideSuggestions() {
+        if (suggestTimer != null) {
+            suggestTimer.stop();
+        }
+        suggestionMenu.setVisible(false);
+    }
+
+    /**
+     * Search for the query with filter.
+     */
+    private void searchFiltered(SearchFilter filter) {
+        this.filter = filter;
+        long startTime = System.currentTimeMillis();
+        runSearch(searcher.searchBooksAsync(queryWindow.getText().toLowerCase().trim(), filter, queryType, displayType, new UserProfile(user), ratingMatrix, similarity), false, startTime);
+    }
+
+    /**
+     * Fill the filter menu with the facets of page: the most frequent genres,
+     * authors and series, ratings and numbers of ratings, with their counts.
+     */
+    private void updateFilterMenu(ResultPage page) {
+        filterMenu.removeAll();
+        Facets facets = page.getFacets() != null ? page.getFacets() : Facets.NONE;
+        addFacetMenu("Genre", facets.genres(), filter::withGenre);
+        addFacetMenu("Author", facets.authors(), filter::withAuthor);
+        addFacetMenu("Series", facets.series(), filter::withSeries);
+        addFacetMenu("Rating", facets.ratings(), value -> filter.withRating(Double.parseDouble(value), Double.parseDouble(value) + Facets.RATING_STEP));
+        addFacetMenu("Number of ratings", facets.numRatings(), value -> filter.withMinNumRatings(Integer.parseInt(value)));
+        JMenuItem clearItem = new JMenuItem("Clear filters");
+        clearItem.setEnabled(!filter.isEmpty());
+        clearItem.addActionListener(e -> searchFiltered(SearchFilter.NONE));
+        filterMenu.addSeparator();
+        filterMenu.add(clearItem);
+        filterMenu.setEnabled(true);
+    }
+
+    private void addFacetMenu(String name, List<Facets.Count> counts, Function<String, SearchFilter> narrow) {
+        JMenu menu = new JMenu(name);
+        menu.setEnabled(!counts.isEmpty());
+        for (Facets.Count count : counts) {
+            JMenuItem item = new JMenuItem(String.format("%s (%d)", count.value(), count.count()));
+            item.addActionListener(e -> searchFiltered(narrow.apply(count.value())));
+            menu.add(item);
+        }
+        filterMenu.add(menu);
+    }
+
+    /**
+     * Display the results of search when it completes, unless another search has
+     * been started since. A new search supersedes (cancels) the one in flight.
+     * If append, the results are a page to add to the current results.
+     */
+    private void runSearch(CompletableFuture<ResultPage> search, boolean append, long startTime) {
+        if (pendingSearch != null) {
+            pendingSearch.cancel(true);
+        }
+        pendingSearch = search;
+        search.whenComplete((page, ex) -> SwingUtilities.invokeLater(() -> {
+            if (search != pendingSearch || search.isCancelled()) {
+                return;
+            }
+            pendingSearch = null;
+            if (ex != null) {
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                displayInfoText(" Search failed: " + cause.getMessage());
+                return;
+            }
+            if (append) {
+                currentResultList.addAll(page.getBooks());
+            } else {
+                currentResultList = new ArrayList<>(page.getBooks());
+                updateFilterMenu(page);
+            }
+            currentPage = page;
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            displayResults(elapsedTime / 1000.0);
+        }));
     }
 
     /**
      * Fill rating matrix between all users on goodreads.
+     * The matrix is opened from its binary snapshot if that is up to date with
+     * the ratings, otherwise it is loaded from the ratings and the snapshot rebuilt.
+     * The checksum of an opened snapshot is verified later in the background, since
+     * that reads the whole file (see verifyRatingSnapshot).
+     * Prefer newline-delimited ratings if present since they are parsed in parallel.
      */
     private void initRatingMatrix() {
-        ratingMatrix = new RatingMatrix();
-        JSONArray ratingEntries;
-        File userFile = new File( RATINGS_FILE);
-        try (FileReader reader = new FileReader(userFile)) {
-            JSONParser parser = new JSONParser () ;
-            ratingEntries = (JSONArray) parser.parse(reader);
-            for (Object entry : ratingEntries) {
-                JSONObject jsonEntry = (JSONObject) entry;
-                ratingMatrix.put((int) (long) jsonEntry.get("userID"), (int) (long) jsonEntry.get("bookID"), (int) (long) jsonEntry.get("rating"));
-            }
-        } catch (IOException | ParseException e) {
+        ratingsFile = Path.of(RATINGS_NDJSON_FILE);
+        if (!Files.exists(ratingsFile)) {
+            ratingsFile = Path.of(RATINGS_FILE);
+        }
+        try {
+            ratingMatrix = RatingMatrix.openSnapshot(Path.of(RATINGS_SNAPSHOT_FILE), ratingsFile);
+            return;
+        } catch (IOException e) {
+            System.err.println("Rebuilding rating snapshot: " + e.getMessage());
+        }
+        ratingMatrix = loadRatingMatrix();
+    }
+
+    /**
+     * Load the rating matrix from the ratings and rebuild the snapshot from it.
+     * The matrix is used even if the snapshot cannot be written (e.g. on Windows,
+     * which refuses to replace a snapshot that is still mapped).
+     */
+    private RatingMatrix loadRatingMatrix() {
+        RatingMatrix loaded;
+        try {
+            if (ratingsFile.toString().endsWith(".ndjson")) {
+                loaded = RatingsLoader.loadNdjson(ratingsFile, Runtime.getRuntime().availableProcessors());
+            } else {
+                loaded = RatingsLoader.loadJson(ratingsFile);
+            }
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        try {
+            RatingSnapshot.write(loaded, Path.of(RATINGS_SNAPSHOT_FILE), ratingsFile);
+        } catch (IOException e) {
+            System.err.println("Not writing rating snapshot: " + e.getMessage());
+        }
+        /* The snapshot is mapped instead of held on the heap, so compress only the loaded matrix. */
+        loaded.compact();
+        return loaded;
+    }
+
+    /**
+     * Verify the checksum of the snapshot the rating matrix was opened from (if any)
+     * in the background. If it fails, the matrix is loaded from the ratings (rebuilding
+     * the snapshot) and replaces the opened one, with similarities set up again and the
+     * ratings made meanwhile put again. Until then searches use the opened matrix.
+     */
+    private void verifyRatingSnapshot() {
+        RatingMatrix opened = ratingMatrix;
+        unverifiedRatings = new ArrayList<>();
+        Thread.ofPlatform().name("snapshot-check").daemon().start(() -> {
+            if (opened.verifySnapshot()) {
+                ratingUpdates.execute(() -> unverifiedRatings = null);
+                return;
+            }
+            System.err.println("Rebuilding rating snapshot: " + RATINGS_SNAPSHOT_FILE + " failed checksum");
+            RatingMatrix rebuilt = loadRatingMatrix();
+            ratingUpdates.execute(() -> {
+                ratingMatrix = rebuilt;
+                initSimilarity();
+                searcher.attach(rebuilt);
+                synchronized (rebuilt) {
+                    for (int[] rating : unverifiedRatings) {
+                        rebuilt.put(rating[0], rating[1], rating[2]);
+                    }
+                }
+                unverifiedRatings = null;
+                /* The ratings of the profile may have been read from the corrupt snapshot. */
+                SwingUtilities.invokeLater(() -> switchProfile(user.getId()));
+            });
+        });
     }
 
     /**
      * Setup similarity.
+     * Use the precomputed nearest neighbors of users if a neighbor graph has been built
+     * from the current ratings, and otherwise select neighbors among LSH candidates. Use the precomputed similar
+     * books for item queries if they have been built, and the factorization model for
+     * model queries if it has been trained. Ratings made in the search engine are folded
+     * into the model.
      */
     private void initSimilarity() {
         Similarity cosineSimilarity = new CosineSimilarity(ratingMatrix);
@@ -311,6 +665,91 @@ public class BookSearchUi extends JFrame {
 
         similarity = cosineSimilarity;
         //similarity = similarityMatrix;
+        if (Files.exists(Path.of(NEIGHBOR_GRAPH_FILE))) {
+            try {
+                similarity = NeighborGraph.open(Path.of(NEIGHBOR_GRAPH_FILE), ratingsFile, cosineSimilarity);
+            } catch (IOException e) {
+                System.err.println("Not using neighbor graph: " + e.getMessage());
+            }
+        }
+        if (USE_LSH) {
+            searcher.setLshIndex(new LshIndex(ratingMatrix, LshIndex.Mode.MINHASH, LSH_BANDS, LSH_ROWS), LSH_CANDIDATES);
+        }
+        if (Files.exists(Path.of(BOOK_NEIGHBORS_FILE))) {
+            try {
+                searcher.setBookNeighbors(BookNeighborIndex.open(Path.of(BOOK_NEIGHBORS_FILE), ratingsFile));
+            } catch (IOException e) {
+                System.err.println("Not using book neighbors: " + e.getMessage());
+            }
+        }
+        if (Files.exists(Path.of(FACTOR_MODEL_FILE))) {
+            try {
+                FactorModel factorModel = FactorModel.load(Path.of(FACTOR_MODEL_FILE));
+                factorModel.attach(ratingMatrix);
+                searcher.setFactorModel(factorModel);
+            } catch (IOException e) {
+                System.err.println("Not using factor model: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Update rating matrix for user, not while a search is re-ranking with it.
+     */
+    private void updateRatingMatrix(int user_id, int book_id, int rating) {
+        ratingUpdates.execute(() -> {
+            synchronized (ratingMatrix) {
+                ratingMatrix.put(user_id, book_id, rating);
+            }
+            if (unverifiedRatings != null) {
+                unverifiedRatings.add(new int[] {user_id, book_id, rating});
+            }
+        });
+    }
+
+    /**
+     * Switch to the profile of user_id once its ratings are loaded from the rating
+     * matrix, after the updates before it.
+     */
+    private void switchProfile(int user_id) {
+        ratingUpdates.execute(() -> {
+            UserProfile profile = new UserProfile(user_id);
+            synchronized (ratingMatrix) {
+                profile.loadRatings(ratingMatrix);
+            }
+            SwingUtilities.invokeLater(() -> user = profile);
+        });
+    }
+
+    /**
+     * Setup local book catalog, so that searches only retrieve the id's of hits.
+     * The catalog is dumped from the index if it is missing or its stamp does not
+     * match the index. Without a catalog (e.g. if it cannot be dumped), books are
+     * retrieved with the hits.
+     */
+    private void initCatalog() {
+        Path catalogFile = Path.of(BOOK_CATALOG_FILE);
+        try {
+            /* Stamped before the books are dumped, so books indexed meanwhile make it stale. */
+            long[] stamp = searcher.indexStamp();
+            BookCatalog catalog = null;
+            if (Files.exists(catalogFile)) {
+                try {
+                    catalog = BookCatalog.open(catalogFile, stamp);
+                } catch (IOException e) {
+                    System.err.println("Rebuilding book catalog: " + e.getMessage());
+                }
+            }
+            if (catalog == null) {
+                List<Book> books = new ArrayList<>();
+                searcher.forEachBook(books::add);
+                BookCatalog.write(catalogFile, books, stamp);
+                catalog = BookCatalog.open(catalogFile, stamp);
+            }
+            searcher.setCatalog(catalog);
+        } catch (IOException | ElasticsearchException e) {
+            System.err.println("Not using book catalog: " + e.getMessage());
+        }
     }
 
     // To use for errors, like when we get no results.
@@ -328,9 +767,10 @@ public class BookSearchUi extends JFrame {
      */
     void displayResults(double elapsedTime) {
         resultWindow.removeAll();
-        displayInfoText(String.format(" Found %d book(s) in %.3f seconds", currentResultList.size(), elapsedTime));
+        displayInfoText(String.format(" Found %d%s book(s)%s in %.3f seconds", currentPage.getTotalHits(), currentPage.isTotalHitsExact() ? "" : "+",
+                filter.isEmpty() ? "" : " (filtered)", elapsedTime));
         int i;
-        for (i = 0; i < Math.min(MAX_DISPLAY_RESULTS, currentResultList.size()); i++) {
+        for (i = 0; i < currentResultList.size(); i++) {
             final Book currBook = currentResultList.get(i);
             JPanel bookToShow = new JPanel();
             bookToShow.setAlignmentX(Component.LEFT_ALIGNMENT);
@@ -357,8 +797,7 @@ public class BookSearchUi extends JFrame {
                         if (e.getStateChange() == ItemEvent.SELECTED) {
                             user.setRating(currBook, rating);
 
-                            /* Update rating matrix for user. */
-                            ratingMatrix.put(user.getId(), currBook.getId(), rating);
+                            updateRatingMatrix(user.getId(), currBook.getId(), rating);
                             
                             for (int k = 0; k < 5; k++) {
                                 starBoxes[k].setIcon(rating >= (k+1) ? new ImageIcon(fullStar) : new ImageIcon(emptyStar));
@@ -411,6 +850,15 @@ public class BookSearchUi extends JFrame {
             }
             resultWindow.add(bookToShow);
         }
+        if (currentPage.hasMore()) {
+            JButton loadMoreButton = new JButton("Load more");
+            loadMoreButton.setFont(font);
+            loadMoreButton.addActionListener(e -> {
+                loadMoreButton.setEnabled(false);
+                runSearch(searcher.loadMoreAsync(currentPage), true, System.currentTimeMillis());
+            });
+            resultWindow.add(loadMoreButton);
+        }
 
         revalidate();
         repaint();
@@ -2,12 +2,14 @@ from bs4 import BeautifulSoup
 import asyncio
 import aiohttp
 import sys
-from elasticsearch import Elasticsearch
+from elasticsearch import AsyncElasticsearch, Elasticsearch, helpers
 from os import getenv
 from dotenv import load_dotenv
 import time
 import json
 import requests
+import threading
+from http.server import BaseHTTPRequestHandler, ThreadingHTTPServer
 
 USE_ELASTIC = True
 GOODREADS_URL = "https://www.goodreads.com"
@@ -17,28 +19,111 @@ NUM_LIST_PAGES = 100
 FRIEND_DEPTH = 0
 ELASTIC_INSERT_URL = "https://localhost:9200/"
 RATINGS_FILE = "ratings.json"
+RATINGS_NDJSON_FILE = "ratings.ndjson"
+WRITE_RATINGS_NDJSON = False    # One rating per line, lets the search engine load ratings in parallel
 TEST_PROFILE1_ID = 164001102
 TEST_PROFILE2_ID = 177735400
 TEST_PROFILE3_ID = 176668697
 TEST_PROFILE4_ID = 177774603
 
+# Books are indexed with _bulk requests of up to BULK_BATCH_SIZE books and BULK_BATCH_BYTES,
+# at most BULK_MAX_IN_FLIGHT at a time. The crawl waits while BULK_QUEUE_SIZE books are
+# waiting to be indexed. Books rejected by an overloaded cluster (429) are retried.
+BULK_BATCH_SIZE = 500
+BULK_BATCH_BYTES = 10 * 1024 * 1024
+BULK_MAX_IN_FLIGHT = 4
+BULK_QUEUE_SIZE = 2 * BULK_MAX_IN_FLIGHT * BULK_BATCH_SIZE
+BULK_MAX_RETRIES = 5
+BULK_INITIAL_BACKOFF = 2        # Seconds, doubled on each retry
+
+NUMBER_OF_REPLICAS = 1          # Replicas once loaded (0 on a single node cluster)
+FORCE_MERGE_SEGMENTS = 1
+
+# Template of the book index, with explicit field types instead of dynamic mapping:
+# - title and abstr are matched by term and phrase (so they keep positions), author
+#   and series too, but their lengths hardly vary, so they are not normalized by
+#   length (no norms). Keywords only index which documents have each term (docs).
+# - genres, author and series are also keywords for the filters and facet counts of
+#   the search engine, genres as (lowercase) keywords. Genres are matched by term as
+#   genres.text, never by phrase, so it only keeps term frequencies (freqs).
+# - rating and number of ratings are numbers for filters, and rank features under
+#   popularity for ranking by popularity. Rank features must be positive, so they
+#   are left out for books without ratings.
+# - suggest is the completion field for search-as-you-type (title, author and series).
+INDEX_TEMPLATE = {
+    "settings": {
+        "number_of_shards": 1,
+        "number_of_replicas": NUMBER_OF_REPLICAS,
+        "analysis": {
+            "normalizer": {
+                "lowercase_keyword": {"type": "custom", "filter": ["lowercase"]}
+            }
+        }
+    },
+    "mappings": {
+        "dynamic": False,
+        "properties": {
+            "id": {"type": "integer"},
+            "title": {"type": "text", "index_options": "positions"},
+            "abstr": {"type": "text", "index_options": "positions"},
+            "author": {"type": "text", "index_options": "positions", "norms": False,
+                       "fields": {"keyword": {"type": "keyword", "ignore_above": 256}}},
+            "series": {"type": "text", "index_options": "positions", "norms": False,
+                       "fields": {"keyword": {"type": "keyword", "ignore_above": 256}}},
+            "genres": {"type": "keyword", "normalizer": "lowercase_keyword",
+                       "fields": {"text": {"type": "text", "index_options": "freqs"}}},
+            "rating": {"type": "float"},
+            "numRatings": {"type": "integer"},
+            "numReviews": {"type": "integer", "index": False},
+            "popularity": {
+                "properties": {
+                    "rating": {"type": "rank_feature"},
+                    "numRatings": {"type": "rank_feature"},
+                    "numReviews": {"type": "rank_feature"}
+                }
+            },
+            "suggest": {"type": "completion"}
+        }
+    }
+}
+
+# While loading, the index is not refreshed and has no replicas (see finishIndex)
+LOADING_SETTINGS = {
+    "refresh_interval": "-1",
+    "number_of_replicas": 0
+}
+LOADED_SETTINGS = {
+    "refresh_interval": None,   # Back to the default
+    "number_of_replicas": NUMBER_OF_REPLICAS
+}
+
 load_dotenv()
+ELASTIC_INSERT_URL = getenv("ES_URL", ELASTIC_INSERT_URL)     # E.g. a local stand-in
 COOKIES = {
     'ubid-main': getenv("COOKIES_UBID_MAIN"),
     'at-main': getenv("COOKIES_AT_MAIN"),
 }
 
+def clientOptions():
+    options = {"basic_auth": ("elastic", getenv("ES_PASSWORD"))}
+    if ELASTIC_INSERT_URL.startswith("https"):
+        options["ssl_assert_fingerprint"] = getenv("ES_FINGERPRINT")
+    return options
+
 if USE_ELASTIC:
-    client = Elasticsearch(
-        ELASTIC_INSERT_URL,
-        ssl_assert_fingerprint = getenv("ES_FINGERPRINT"),
-        basic_auth=("elastic", getenv("ES_PASSWORD"))
-    )
+    client = Elasticsearch(ELASTIC_INSERT_URL, **clientOptions())
+
+def createIndex():
+    """Recreate the book index from its template, with the settings for loading"""
     if client.indices.exists(index=getenv("ES_INDEX")):
         client.options(ignore_status=[400,404]).indices.delete(index=getenv("ES_INDEX")) 
-    client.indices.create(index=getenv("ES_INDEX"))
+    client.indices.put_index_template(name=getenv("ES_INDEX"),
+            index_patterns=[getenv("ES_INDEX")],
+            template=INDEX_TEMPLATE)
+    client.indices.create(index=getenv("ES_INDEX"), settings=LOADING_SETTINGS)
 
 ratings_list = []
+bulkIndexer = None
 
 
 
@@ -155,21 +240,154 @@ async def indexBook(URL, session):
         # print(URL)
 
         result["id"] = URLtoID(URL)
-        addBookToIndex(result)
-    except:
+        result["popularity"] = {name: result[name] for name in ["rating", "numRatings", "numReviews"] if result[name] > 0}
+        result["suggest"] = {"input": [text for text in [result["title"], result["author"], result["series"]] if text]}
+    except Exception:
         log(f"[RETRY] Error indexing {URL}")
         await indexBook(URL, session)
+        return
+    await addBookToIndex(result)
 
-numIndexedBooks = 0
-def addBookToIndex(data):
+async def addBookToIndex(data):
     if USE_ELASTIC:
-        client.index(index=getenv("ES_INDEX"),
-                id=data["id"],
-                document=data)
-    # print("Indexed book " + data["title"] + " by " + data["author"])
-    # print()
-    # print(data)
-    updateProgressBooks()
+        await bulkIndexer.add(data)     # Counted once indexed
+    else:
+        updateProgressBooks()
+
+class BulkIndexer:
+    """Indexes documents with concurrent _bulk requests.
+
+    Documents are queued by add(), which waits while the queue is full, so that the
+    crawl does not outrun Elasticsearch. Each worker streams documents from the queue
+    in batches, one bulk request at a time, so at most `workers` requests are in flight.
+    Documents rejected with 429 are retried with exponential backoff, other failures
+    are logged and counted. Works with any client (or stand-in) serving the _bulk API.
+    """
+
+    _DONE = object()
+
+    def __init__(self, client, index, workers=BULK_MAX_IN_FLIGHT, queueSize=BULK_QUEUE_SIZE,
+                 batchSize=BULK_BATCH_SIZE, batchBytes=BULK_BATCH_BYTES, maxRetries=BULK_MAX_RETRIES,
+                 initialBackoff=BULK_INITIAL_BACKOFF, onIndexed=None):
+        self.client = client
+        self.index = index
+        self.batchSize = batchSize
+        self.batchBytes = batchBytes
+        self.maxRetries = maxRetries
+        self.initialBackoff = initialBackoff
+        self.onIndexed = onIndexed
+        self.numIndexed = 0
+        self.numFailed = 0
+        self.queue = asyncio.Queue(maxsize=queueSize)
+        self.workers = [asyncio.ensure_future(self.work()) for _ in range(workers)]
+
+    async def add(self, document):
+        await self.queue.put(document)
+
+    async def close(self):
+        """Index the queued documents and stop the workers"""
+        for _ in self.workers:
+            await self.queue.put(self._DONE)
+        await asyncio.gather(*self.workers)
+
+    async def actions(self):
+        while True:
+            document = await self.queue.get()
+            if document is self._DONE:
+                return
+            yield {"_index": self.index, "_id": document["id"], "_source": document}
+
+    async def work(self):
+        async for ok, item in helpers.async_streaming_bulk(self.client, self.actions(),
+                chunk_size=self.batchSize,
+                max_chunk_bytes=self.batchBytes,
+                max_retries=self.maxRetries,
+                initial_backoff=self.initialBackoff,
+                raise_on_error=False,
+                raise_on_exception=False):
+            if ok:
+                self.numIndexed += 1
+                if self.onIndexed is not None:
+                    self.onIndexed()
+            else:
+                self.numFailed += 1
+                log(f"[ERROR] Bulk indexing failed: {item}")
+
+class StubBulkHandler(BaseHTTPRequestHandler):
+    """Stand-in for the _bulk API of Elasticsearch, for checkBulkIndexer.
+
+    Indexes nothing, but records the id's of the documents, the largest batch and the
+    most concurrent requests. The first attempt at every REJECT_EVERY-th document is
+    rejected with 429, as an overloaded cluster would.
+    """
+
+    REJECT_EVERY = 10
+    lock = threading.Lock()
+    indexed = set()
+    rejected = set()
+    inFlight = 0
+    maxInFlight = 0
+    maxBatch = 0
+
+    def do_POST(self):
+        cls = StubBulkHandler
+        with cls.lock:
+            cls.inFlight += 1
+            cls.maxInFlight = max(cls.maxInFlight, cls.inFlight)
+        lines = self.rfile.read(int(self.headers["Content-Length"])).decode("utf-8").splitlines()
+        actions = [json.loads(line) for line in lines[0::2]]
+        time.sleep(0.01)
+        items = []
+        with cls.lock:
+            cls.maxBatch = max(cls.maxBatch, len(actions))
+            for action in actions:
+                id = action["index"]["_id"]
+                if int(id) % cls.REJECT_EVERY == 0 and id not in cls.rejected:
+                    cls.rejected.add(id)
+                    items.append({"index": {"_id": id, "status": 429,
+                                            "error": {"type": "es_rejected_execution_exception", "reason": "stub"}}})
+                else:
+                    cls.indexed.add(id)
+                    items.append({"index": {"_id": id, "status": 201, "result": "created"}})
+            cls.inFlight -= 1
+        body = json.dumps({"took": 1, "errors": len(cls.rejected) > 0, "items": items}).encode("utf-8")
+        self.send_response(200)
+        self.send_header("Content-Type", "application/json")
+        self.send_header("X-Elastic-Product", "Elasticsearch")
+        self.send_header("Content-Length", str(len(body)))
+        self.end_headers()
+        self.wfile.write(body)
+
+    do_PUT = do_POST
+
+    def log_message(self, format, *args):
+        pass
+
+def checkBulkIndexer(numBooks=1000, workers=3, batchSize=50):
+    """Index numBooks documents into a stub _bulk endpoint, and print checks (all True)"""
+    server = ThreadingHTTPServer(("localhost", 0), StubBulkHandler)
+    threading.Thread(target=server.serve_forever, daemon=True).start()
+
+    async def run():
+        stubClient = AsyncElasticsearch(f"http://localhost:{server.server_port}")
+        bulkIndexer = BulkIndexer(stubClient, "books", workers=workers, queueSize=2 * batchSize,
+                                  batchSize=batchSize, initialBackoff=0.01)
+        maxQueued = 0
+        for id in range(1, numBooks + 1):
+            await bulkIndexer.add({"id": id, "title": f"Book {id}"})
+            maxQueued = max(maxQueued, bulkIndexer.queue.qsize())
+        await bulkIndexer.close()
+        await stubClient.close()
+        return bulkIndexer, maxQueued
+
+    bulkIndexer, maxQueued = asyncio.run(run())
+    server.shutdown()
+    stub = StubBulkHandler
+    print(bulkIndexer.numIndexed == numBooks and bulkIndexer.numFailed == 0)
+    print(stub.indexed == {str(id) for id in range(1, numBooks + 1)})
+    print(len(stub.rejected) == numBooks // stub.REJECT_EVERY)       # Rejected once, then retried
+    print(stub.maxBatch <= batchSize and stub.maxInFlight <= workers)
+    print(maxQueued <= 2 * batchSize)
 
 async def fetch(session, url, loggedin=False):
     # start = time.time()
@@ -382,17 +600,39 @@ def log(msg):
     print("\r" + msg + " "*(90-len(msg)))
     printProgress()
 
+def finishIndex():
+    """Restore the settings of the loaded index, and merge its segments"""
+    if not USE_ELASTIC:
+        return
+    print("finishing index")
+    client.indices.put_settings(index=getenv("ES_INDEX"), settings=LOADED_SETTINGS)
+    client.options(request_timeout=600).indices.forcemerge(index=getenv("ES_INDEX"),
+            max_num_segments=FORCE_MERGE_SEGMENTS)
+    client.indices.refresh(index=getenv("ES_INDEX"))
+
 def writeRatings():
     with open(RATINGS_FILE, "w") as f:
         f.write(json.dumps(ratings_list))
+    if WRITE_RATINGS_NDJSON:
+        with open(RATINGS_NDJSON_FILE, "w") as f:
+            for rating in ratings_list:
+                f.write(json.dumps(rating) + "\n")
 
 async def main():
+    global bulkIndexer
     printProgress()
+    if USE_ELASTIC:
+        asyncClient = AsyncElasticsearch(ELASTIC_INSERT_URL, **clientOptions())
+        bulkIndexer = BulkIndexer(asyncClient, getenv("ES_INDEX"), onIndexed=updateProgressBooks)
     tasks = [
         indexBooks(),
         indexUsers()
     ]
     await asyncio.gather(*tasks)
+    if USE_ELASTIC:
+        await bulkIndexer.close()
+        await asyncClient.close()
+        log(f"[STATUS] Bulk indexed {bulkIndexer.numIndexed} books, {bulkIndexer.numFailed} failed")
 
     # async with aiohttp.ClientSession(connector=aiohttp.TCPConnector(limit=30)) as session:
     #     await indexBook("https://www.goodreads.com/book/show/60690784-kiss-the-sky", session)
@@ -406,7 +646,12 @@ async def main():
 
 
 if __name__ == "__main__":
+    if "--check-bulk" in sys.argv:
+        checkBulkIndexer()
+        sys.exit(0)
     timeStart = time.time()
+    if USE_ELASTIC:
+        createIndex()
     try:
         loop = asyncio.get_event_loop()
         loop.run_until_complete(main())
@@ -415,6 +660,7 @@ if __name__ == "__main__":
     timeEnd = time.time()
     timeElapsed = timeEnd - timeStart
     print()
+    finishIndex()
     print("writing ratings")
     writeRatings()
     minutes = int(timeElapsed / 60)